@@ -0,0 +1,312 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Local cache of compressed files on their way to S3, so that an upload that failed, even in an earlier run, is
+ * sent again without compressing the file again.
+ * <p>
+ * Artifacts are content-addressed: named after the SHA-256 of the source content and of how it is compressed, so a
+ * changed file is never mistaken for its old artifact. Each artifact has a sidecar file holding its MD5, sent as
+ * the <code>Content-MD5</code> of the upload so that S3 rejects one corrupted on the way. The sidecar is written last,
+ * and an artifact without one, or that no longer matches it, is compressed again. Evict an artifact once the document
+ * referencing its upload is committed; an artifact shared by several files with the same content is deleted when
+ * the last of them is.
+ * <p>
+ * Uncompressed files are not copied: their artifact is the file itself, which eviction leaves alone.
+ * <p>
+ * Artifacts of pushes that are never retried would stay forever: opening a cache deletes those unused for longer
+ * than a maximum age, then the least recently used ones while the cache is over a maximum size.
+ */
+public class ArtifactCache {
+
+    public static final Duration DEFAULT_MAX_AGE = Duration.ofDays(7);
+    public static final long DEFAULT_MAX_BYTES = 4L << 30;
+
+    /**
+     * Writes the compressed content of a source into a file, e.g. {@link CoveoPushAPI#compressFile}
+     */
+    public interface Compressor {
+        void compress(File target) throws Exception;
+    }
+
+    /**
+     * A compressed file ready to upload
+     */
+    public static class Artifact {
+        public final File file;
+        public final long length;
+        /** base64 MD5 of the file, as in a <code>Content-MD5</code> header */
+        public final String md5;
+        // null for an uncompressed source, which is not cached
+        final String key;
+
+        Artifact(File file, long length, String md5, String key) {
+            this.file = file;
+            this.length = length;
+            this.md5 = md5;
+            this.key = key;
+        }
+
+        @Override
+        public String toString() {
+            return file + " (" + length + " bytes, MD5 " + md5 + ")";
+        }
+    }
+
+    private static final Logger LOGGER =
+            Logger.getLogger(ArtifactCache.class.getName());
+
+    private final File directory;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    // pushes using each artifact: files with the same content share it, and the last one to finish evicts it
+    private final Map<String, Integer> users = new HashMap<>();
+
+    /**
+     * A cache in <code>coveo-artifacts</code> under the temporary directory
+     */
+    public ArtifactCache() throws IOException {
+        this(new File(System.getProperty("java.io.tmpdir"), "coveo-artifacts"));
+    }
+
+    /**
+     * @param directory where artifacts are kept, created if needed; artifacts left by earlier runs are reused
+     */
+    public ArtifactCache(File directory) throws IOException {
+        this(directory, DEFAULT_MAX_AGE, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param directory where artifacts are kept, created if needed; artifacts left by earlier runs are reused
+     * @param maxAge    artifacts left by earlier runs and unused for longer are deleted
+     * @param maxBytes  artifacts left by earlier runs are deleted, least recently used first, down to this size
+     */
+    public ArtifactCache(File directory, Duration maxAge, long maxBytes) throws IOException {
+        Files.createDirectories(directory.toPath());
+        this.directory = directory;
+        // compressions interrupted by the end of an earlier run
+        File[] partial = directory.listFiles((dir, name) -> name.endsWith(".tmp"));
+        if (partial != null) {
+            for (File file : partial) {
+                file.delete();
+            }
+        }
+        sweep(maxAge, maxBytes);
+    }
+
+    /**
+     * Delete the artifacts unused for longer than maxAge, then the least recently used ones down to maxBytes, and
+     * the sidecars left without an artifact
+     */
+    private void sweep(Duration maxAge, long maxBytes) {
+        File[] artifacts = directory.listFiles((dir, name) -> name.endsWith(".bin"));
+        if (artifacts == null) {
+            return;
+        }
+        // last modified when compressed or reused
+        Arrays.sort(artifacts, Comparator.comparingLong(File::lastModified));
+        long total = 0;
+        for (File artifact : artifacts) {
+            total += artifact.length();
+        }
+        long expiry = System.currentTimeMillis() - maxAge.toMillis();
+        int deleted = 0;
+        long freed = 0;
+        for (File artifact : artifacts) {
+            if (artifact.lastModified() >= expiry && total <= maxBytes) {
+                break;
+            }
+            long length = artifact.length();
+            String key = artifact.getName().substring(0, artifact.getName().length() - ".bin".length());
+            // the sidecar first, so that an artifact is never seen without its whole content
+            new File(directory, key + ".md5").delete();
+            if (artifact.delete()) {
+                deleted++;
+                freed += length;
+                total -= length;
+            }
+        }
+        File[] sidecars = directory.listFiles((dir, name) -> name.endsWith(".md5")
+                && !new File(dir, name.substring(0, name.length() - ".md5".length()) + ".bin").exists());
+        if (sidecars != null) {
+            for (File sidecar : sidecars) {
+                sidecar.delete();
+            }
+        }
+        if (deleted > 0) {
+            LOGGER.info("Deleted " + deleted + " old artifacts (" + freed + " bytes) from " + directory + ", "
+                    + total + " bytes left");
+        }
+    }
+
+    /**
+     * @param source     the file to upload
+     * @param choice     how it is compressed
+     * @param compressor compresses the source as chosen, on a cache miss
+     * @return the cached artifact of the source, compressed first if it is not cached yet
+     */
+    public Artifact obtain(File source, CompressionSelector.Choice choice, Compressor compressor) throws Exception {
+        if (choice.type == CompressionType.UNCOMPRESSED) {
+            return new Artifact(source, source.length(), md5(source), null);
+        }
+        String key = key(source, choice);
+        synchronized (users) {
+            users.merge(key, 1, Integer::sum);
+        }
+        try {
+            return obtain(source, key, compressor);
+        } catch (Exception | Error e) {
+            unuse(key);
+            throw e;
+        }
+    }
+
+    private Artifact obtain(File source, String key, Compressor compressor) throws Exception {
+        File artifact = new File(directory, key + ".bin");
+        File sidecar = new File(directory, key + ".md5");
+        if (sidecar.isFile() && artifact.isFile()) {
+            String md5 = new String(Files.readAllBytes(sidecar.toPath()), StandardCharsets.US_ASCII).trim();
+            // checked, as a corrupted artifact would be rejected by S3 on every attempt
+            if (md5.equals(md5(artifact))) {
+                hits.incrementAndGet();
+                // kept by the sweep as recently used
+                artifact.setLastModified(System.currentTimeMillis());
+                if (LOGGER.isLoggable(Level.INFO)) {
+                    LOGGER.info("Reusing the compressed artifact of " + source + ": " + artifact);
+                }
+                return new Artifact(artifact, artifact.length(), md5, key);
+            }
+            LOGGER.warning("Compressing " + source + " again, its artifact does not match its MD5: " + artifact);
+            sidecar.delete();
+        }
+        misses.incrementAndGet();
+
+        // unique temporary names, as another thread may be compressing the same content
+        File temp = File.createTempFile(key, ".tmp", directory);
+        File sidecarTemp = File.createTempFile(key, ".md5.tmp", directory);
+        try {
+            compressor.compress(temp);
+            String md5 = md5(temp);
+            Files.move(temp.toPath(), artifact.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.write(sidecarTemp.toPath(), md5.getBytes(StandardCharsets.US_ASCII));
+            Files.move(sidecarTemp.toPath(), sidecar.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return new Artifact(artifact, artifact.length(), md5, key);
+        } finally {
+            temp.delete();
+            sidecarTemp.delete();
+        }
+    }
+
+    /**
+     * Delete an artifact, once the document referencing its upload is committed, unless another push is using it
+     */
+    public void evict(Artifact artifact) {
+        if (artifact.key == null) {
+            return;
+        }
+        // deleted under the lock obtain() counts its users with, so that a push obtaining the same content
+        // meanwhile either keeps the artifact or finds it gone and compresses it again, never loses it after
+        synchronized (users) {
+            if (unuse(artifact.key)) {
+                // the sidecar first, so that an artifact is never seen without its whole content
+                new File(directory, artifact.key + ".md5").delete();
+                artifact.file.delete();
+            }
+        }
+    }
+
+    /**
+     * Give up an artifact after a failed push, keeping it for the push to be retried
+     */
+    public void release(Artifact artifact) {
+        if (artifact.key != null) {
+            unuse(artifact.key);
+        }
+    }
+
+    /**
+     * @return true if no push uses the artifact anymore
+     */
+    private boolean unuse(String key) {
+        synchronized (users) {
+            return users.computeIfPresent(key, (k, count) -> count == 1 ? null : count - 1) == null;
+        }
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return the number of artifacts found in the cache
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of artifacts compressed
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * SHA-256 of the compression type and level, and of the source content
+     */
+    private static String key(File source, CompressionSelector.Choice choice) throws IOException {
+        MessageDigest digest = digest("SHA-256");
+        digest.update((choice.type.name() + ":" + choice.level + ":").getBytes(StandardCharsets.US_ASCII));
+        update(digest, source);
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest()) {
+            key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return key.toString();
+    }
+
+    private static String md5(File file) throws IOException {
+        MessageDigest digest = digest("MD5");
+        update(digest, file);
+        return Base64.getEncoder().encodeToString(digest.digest());
+    }
+
+    private static MessageDigest digest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            // every JDK has MD5 and SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void update(MessageDigest digest, File file) throws IOException {
+        BufferPool pool = BufferPool.getDefault();
+        byte[] buffer = pool.acquireBuffer();
+        try (InputStream in = new FileInputStream(file)) {
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                digest.update(buffer, 0, n);
+            }
+        } finally {
+            pool.releaseBuffer(buffer);
+        }
+    }
+
+}
@@ -0,0 +1,461 @@
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/**
+ * Collects add/update and delete operations into a single batch JSON file, uploads it to the S3 file container
+ * and commits it with one <code>documents/batch</code> call.
+ * <p>
+ * A batch is flushed when the next operation would push it past <code>maxBatchBytes</code> or
+ * <code>maxBatchDocuments</code> operations, or when its oldest document has waited <code>lingerMillis</code>.
+ * Callers block while a batch is being uploaded, which throttles producers to the upload rate. A batch whose push
+ * fails is kept on disk and sent again by the next flush.
+ */
+public class BatchDocumentProducer implements Closeable {
+
+    /** The Push API rejects batch files larger than 256 MB */
+    public static final long DEFAULT_MAX_BATCH_BYTES = 256L * 1024 * 1024;
+    public static final int DEFAULT_MAX_BATCH_DOCUMENTS = 10000;
+    public static final long DEFAULT_LINGER_MILLIS = 5000;
+
+    private static final byte[] BATCH_START = "{\"addOrUpdate\":[".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] DELETE_START = "],\"delete\":[".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] BATCH_END = "]}".getBytes(StandardCharsets.UTF_8);
+
+    private static final Logger LOGGER =
+            Logger.getLogger(BatchDocumentProducer.class.getName());
+
+    private final CoveoPushAPI coveoPushAPI;
+    private final long maxBatchBytes;
+    private final int maxBatchDocuments;
+    private final long lingerMillis;
+
+    private final ScheduledExecutorService lingerTimer;
+    private final ScheduledFuture<?> lingerTask;
+
+    // guards the state below; a lock rather than a monitor, as it is held across uploads and a virtual thread
+    // blocked on a monitor pins its carrier thread on Java 21 to 23
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // current batch: the addOrUpdate array goes to batchFile, the delete array to deleteFile until the batch is sealed
+    private File batchFile;
+    private OutputStream batchStream;
+    private File deleteFile;
+    private OutputStream deleteStream;
+    private long batchBytes;
+    private int batchDocuments;
+    private int batchAdds;
+    private int batchDeletes;
+    private long batchStartedAt;
+
+    // sealed batch file, kept until it is committed so that a failed push is sent again by the next flush
+    private File sealedFile;
+    private int sealedAdds;
+    private int sealedDeletes;
+    private long sealedBytes;
+
+    // totals
+    private long documentsSent;
+    private long deletesSent;
+    private long batchesSent;
+    private long sendNanos;
+    private final long createdAt = System.nanoTime();
+
+    // failure of a linger flush, re-thrown to the producer on its next call
+    private Exception lingerFailure;
+    private boolean closed;
+
+    public BatchDocumentProducer(CoveoPushAPI coveoPushAPI) {
+        this(coveoPushAPI, DEFAULT_MAX_BATCH_BYTES, DEFAULT_MAX_BATCH_DOCUMENTS, DEFAULT_LINGER_MILLIS);
+    }
+
+    /**
+     * @param coveoPushAPI      client used to upload and commit the batches
+     * @param maxBatchBytes     maximum size of a batch file, in bytes
+     * @param maxBatchDocuments maximum number of documents per batch
+     * @param lingerMillis      maximum time a document waits in a partial batch; 0 disables the timer
+     */
+    public BatchDocumentProducer(CoveoPushAPI coveoPushAPI, long maxBatchBytes, int maxBatchDocuments, long lingerMillis) {
+        if (maxBatchBytes <= BATCH_START.length + DELETE_START.length + BATCH_END.length) {
+            throw new IllegalArgumentException("maxBatchBytes is too small: " + maxBatchBytes);
+        }
+        if (maxBatchDocuments <= 0) {
+            throw new IllegalArgumentException("maxBatchDocuments must be positive: " + maxBatchDocuments);
+        }
+        this.coveoPushAPI = coveoPushAPI;
+        this.maxBatchBytes = maxBatchBytes;
+        this.maxBatchDocuments = maxBatchDocuments;
+        this.lingerMillis = lingerMillis;
+
+        if (lingerMillis > 0) {
+            lingerTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "coveo-batch-linger");
+                t.setDaemon(true);
+                return t;
+            });
+            long period = Math.max(1, lingerMillis / 4);
+            lingerTask = lingerTimer.scheduleWithFixedDelay(this::flushIfLingered, period, period, TimeUnit.MILLISECONDS);
+        } else {
+            lingerTimer = null;
+            lingerTask = null;
+        }
+    }
+
+    /**
+     * Add (or update) a document in the current batch, flushing first if the batch is full.
+     *
+     * @param json  the JSON Document, as passed to {@link CoveoPushAPI#putDocumentOnCoveo(String, String)}
+     * @param docId the unique Coveo documentId / URI
+     */
+    public void addOrUpdate(String json, String docId) throws Exception {
+        lock.lock();
+        try {
+            checkOpen();
+            byte[] entry = toBatchEntry(json, docId);
+            reserve(entry, docId);
+            if (batchAdds > 0) {
+                batchStream.write(',');
+                batchBytes++;
+            }
+            batchStream.write(entry);
+            batchBytes += entry.length;
+            batchAdds++;
+            batchDocuments++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Delete a document in the current batch, flushing first if the batch is full.
+     *
+     * @param docId the Coveo documentId / URI
+     */
+    public void delete(String docId) throws Exception {
+        lock.lock();
+        try {
+            checkOpen();
+            byte[] entry = toDeleteEntry(docId);
+            reserve(entry, docId);
+            if (deleteStream == null) {
+                deleteFile = File.createTempFile("batch", ".delete.json");
+                deleteStream = new BufferedOutputStream(new FileOutputStream(deleteFile), StreamTransfer.BUFFER_SIZE);
+                batchBytes += DELETE_START.length;
+            }
+            if (batchDeletes > 0) {
+                deleteStream.write(',');
+                batchBytes++;
+            }
+            deleteStream.write(entry);
+            batchBytes += entry.length;
+            batchDeletes++;
+            batchDocuments++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Make room for an entry in the current batch, flushing it if it is full or the entry does not fit, then opening
+     * a new one. Flushing before the entry is added means an operation that throws was not added.
+     */
+    private void reserve(byte[] entry, String docId) throws Exception {
+        // +1 for the separating comma; assume the delete array may still have to be opened
+        long entryBytes = entry.length + 1 + DELETE_START.length;
+        if (BATCH_START.length + entryBytes + BATCH_END.length > maxBatchBytes) {
+            throw new IllegalArgumentException("Document " + docId + " is larger than the batch limit of " + maxBatchBytes + " bytes");
+        }
+        if (batchFile != null && (batchDocuments >= maxBatchDocuments
+                || batchBytes + entryBytes + BATCH_END.length > maxBatchBytes)) {
+            flush();
+        }
+        if (batchFile == null) {
+            openBatch();
+        }
+    }
+
+    /**
+     * Upload and commit the batch whose push failed earlier, if any, then the current batch, if it holds any
+     * document. A sealed batch file is kept until it is committed: if its push fails, the next flush sends it again.
+     */
+    public void flush() throws Exception {
+        lock.lock();
+        try {
+            checkLingerFailure();
+            while (sealedFile != null || batchFile != null) {
+                if (sealedFile == null) {
+                    seal();
+                }
+                pushSealed();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Close the current batch file, turning it into the sealed batch
+     */
+    private void seal() throws IOException {
+        File file = batchFile;
+        int adds = batchAdds;
+        int deletes = batchDeletes;
+        long bytes = batchBytes;
+        batchFile = null;
+        batchDocuments = 0;
+        batchAdds = 0;
+        batchDeletes = 0;
+        batchBytes = 0;
+
+        boolean sealed = false;
+        try {
+            if (deleteStream != null) {
+                // append the delete array after the addOrUpdate array
+                deleteStream.close();
+                batchStream.write(DELETE_START);
+                batchStream.flush();
+                try (InputStream in = new FileInputStream(deleteFile)) {
+                    StreamTransfer.copy(in, batchStream);
+                }
+            }
+            batchStream.write(BATCH_END);
+            batchStream.close();
+            sealed = true;
+        } finally {
+            if (!sealed) {
+                batchStream.close();
+                file.delete();
+            }
+            batchStream = null;
+            if (deleteStream != null) {
+                deleteStream.close();
+                deleteStream = null;
+                deleteFile.delete();
+                deleteFile = null;
+            }
+        }
+        sealedFile = file;
+        sealedAdds = adds;
+        sealedDeletes = deletes;
+        sealedBytes = bytes;
+    }
+
+    /**
+     * Upload and commit the sealed batch, then delete its file; on failure the file is kept for the next flush
+     */
+    private void pushSealed() throws Exception {
+        long start = System.nanoTime();
+        try {
+            AbstractMap.SimpleEntry<String, String> s3File = coveoPushAPI.takeS3File();
+            coveoPushAPI.putFileOnS3(sealedFile, s3File.getKey());
+            coveoPushAPI.pushBatchOnCoveo(s3File.getValue());
+        } catch (Exception e) {
+            LOGGER.warning("Unable to push the batch of " + sealedAdds + " documents and " + sealedDeletes
+                    + " deletes, kept in " + sealedFile + " for the next flush: " + e);
+            throw e;
+        }
+        long elapsed = System.nanoTime() - start;
+        sealedFile.delete();
+        sealedFile = null;
+
+        documentsSent += sealedAdds;
+        deletesSent += sealedDeletes;
+        batchesSent++;
+        sendNanos += elapsed;
+        LOGGER.info("Pushed batch of " + sealedAdds + " documents and " + sealedDeletes + " deletes (" + sealedBytes + " bytes) in "
+                + TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms, " + String.format("%.1f", getDocumentsPerSecond()) + " docs/sec overall");
+    }
+
+    /**
+     * Flush the pending batch and stop the linger timer. If the last push fails, its batch is given up on, and its
+     * file deleted.
+     */
+    @Override
+    public void close() throws IOException {
+        if (lingerTimer != null) {
+            lingerTask.cancel(false);
+            lingerTimer.shutdown();
+        }
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            try {
+                flush();
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException("Unable to flush the last batch", e);
+            } finally {
+                closed = true;
+                discardBatches();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of documents committed so far
+     */
+    public long getDocumentsSent() {
+        lock.lock();
+        try {
+            return documentsSent;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of deletes committed so far
+     */
+    public long getDeletesSent() {
+        lock.lock();
+        try {
+            return deletesSent;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of batches committed so far
+     */
+    public long getBatchesSent() {
+        lock.lock();
+        try {
+            return batchesSent;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return operations (adds and deletes) committed per second of wall-clock time since this producer was created
+     */
+    public double getDocumentsPerSecond() {
+        lock.lock();
+        try {
+            long elapsed = System.nanoTime() - createdAt;
+            return elapsed <= 0 ? 0 : (documentsSent + deletesSent) * 1e9 / elapsed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return operations (adds and deletes) committed per second spent uploading and committing batches
+     */
+    public double getDocumentsPerSendSecond() {
+        lock.lock();
+        try {
+            return sendNanos <= 0 ? 0 : (documentsSent + deletesSent) * 1e9 / sendNanos;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void flushIfLingered() {
+        lock.lock();
+        try {
+            if (closed || (batchFile == null && sealedFile == null) || lingerFailure != null) {
+                return;
+            }
+            if (System.nanoTime() - batchStartedAt < TimeUnit.MILLISECONDS.toNanos(lingerMillis)) {
+                return;
+            }
+            try {
+                flush();
+            } catch (Exception e) {
+                lingerFailure = e;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Delete the files of the batches left unpushed
+     */
+    private void discardBatches() throws IOException {
+        if (sealedFile != null) {
+            LOGGER.warning("Giving up on the batch of " + sealedAdds + " documents and " + sealedDeletes + " deletes");
+            sealedFile.delete();
+            sealedFile = null;
+        }
+        if (batchFile != null) {
+            LOGGER.warning("Giving up on the batch of " + batchAdds + " documents and " + batchDeletes + " deletes");
+            try {
+                batchStream.close();
+                if (deleteStream != null) {
+                    deleteStream.close();
+                }
+            } finally {
+                batchFile.delete();
+                batchFile = null;
+                batchStream = null;
+                if (deleteFile != null) {
+                    deleteFile.delete();
+                    deleteFile = null;
+                    deleteStream = null;
+                }
+            }
+        }
+    }
+
+    private void openBatch() throws IOException {
+        batchFile = File.createTempFile("batch", ".json");
+        batchStream = new BufferedOutputStream(new FileOutputStream(batchFile), StreamTransfer.BUFFER_SIZE);
+        batchStream.write(BATCH_START);
+        batchBytes = BATCH_START.length;
+        batchDocuments = 0;
+        batchStartedAt = System.nanoTime();
+    }
+
+    private void checkOpen() throws Exception {
+        if (closed) {
+            throw new IllegalStateException("BatchDocumentProducer is closed");
+        }
+        checkLingerFailure();
+    }
+
+    private void checkLingerFailure() throws Exception {
+        if (lingerFailure != null) {
+            Exception e = lingerFailure;
+            lingerFailure = null;
+            throw new Exception("A background batch flush failed", e);
+        }
+    }
+
+    /**
+     * Build the delete entry of a document
+     */
+    static byte[] toDeleteEntry(String docId) {
+        return ("{\"documentId\":" + JSONObject.quote(docId) + "}").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Turn a JSON Document into a batch entry by setting its documentId, replacing any documentId it already has.
+     */
+    static byte[] toBatchEntry(String json, String docId) {
+        try {
+            JSONObject document = new JSONObject(json);
+            document.put("documentId", docId);
+            return document.toString().getBytes(StandardCharsets.UTF_8);
+        } catch (JSONException e) {
+            throw new IllegalArgumentException("JSON Document for " + docId + " is not a JSON object", e);
+        }
+    }
+
+}
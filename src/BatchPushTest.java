@@ -0,0 +1,161 @@
+import org.apache.commons.cli.*;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.lang.StringUtils;
+import org.json.JSONWriter;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+public class BatchPushTest {
+
+    private static final Logger LOGGER =
+            Logger.getLogger(BatchPushTest.class.getName());
+
+    /**
+     * Usage: BatchPushTest -o coveochadjohnson01 -s coveochadjohnson01-x4vdgehj6st4bvt6ur3wmx2poi
+     *              -a __________-____-____-____-____________ -f "/Users/cjohnson/somefolder"
+     *              -u http://www.test.com/somefolder/ [-c 100]
+     *
+     * Pushes the metadata of every file in a folder as batches, and optionally pushes the first <code>-c</code>
+     * files one at a time first, to compare the documents per second of both paths.
+     *
+     * @param args
+     */
+    public static void main(String[] args) {
+
+        String organizationId = null;
+        String sourceId = null;
+        String accessToken = null;
+        String folderPath = null;
+        String baseUri = null;
+        int compareCount = 0;
+
+        // create the command line parser
+        CommandLineParser parser = new DefaultParser();
+
+        // create the Options
+        Options options = new Options();
+        options.addOption(Option.builder("o")
+                .longOpt("organization-id")
+                .desc("Coveo Organization ID")
+                .hasArg().required().build());
+        options.addOption(Option.builder("s")
+                .longOpt("source-id")
+                .desc("Coveo Source ID")
+                .hasArg().required().build());
+        options.addOption(Option.builder("a")
+                .longOpt("access-token")
+                .desc("Coveo Source Access Token")
+                .hasArg().required().build());
+        options.addOption(Option.builder("f")
+                .longOpt("folder")
+                .desc("Path to the folder whose files are pushed")
+                .hasArg().required().build());
+        options.addOption(Option.builder("u")
+                .longOpt("base-uri")
+                .desc("Prefix of the Coveo Document IDs (URI); the file name is appended to it")
+                .hasArg().required().build());
+        options.addOption(Option.builder("c")
+                .longOpt("compare")
+                .desc("Number of files to push one at a time first, for comparison")
+                .hasArg().build());
+
+        try {
+            // parse the command line arguments
+            CommandLine line = parser.parse(options, args);
+
+            organizationId = line.getOptionValue("o");
+            sourceId = line.getOptionValue("s");
+            accessToken = line.getOptionValue("a");
+            folderPath = line.getOptionValue("f");
+            baseUri = line.getOptionValue("u");
+            compareCount = Integer.parseInt(line.getOptionValue("c", "0"));
+
+        } catch (ParseException | NumberFormatException exp) {
+            HelpFormatter formatter = new HelpFormatter();
+            formatter.printHelp("BatchPushTest <args>", options);
+            System.exit(0);
+        }
+
+        File[] files = new File(folderPath).listFiles(File::isFile);
+        if (files == null) {
+            LOGGER.severe("Not a folder: " + folderPath);
+            return;
+        }
+
+        // Construct CoveoPushAPI object
+        CoveoPushAPI coveoPushAPI = new CoveoPushAPI(organizationId, sourceId, accessToken);
+
+        // *** Set Source Status to REBUILD for the time of the job, then back to IDLE ***
+        try (SourceStatusSession.Job job = coveoPushAPI.getStatusSession().begin("REBUILD")) {
+            LOGGER.info("Source status: " + job.getStatus());
+
+            // *** PUT the first documents one at a time, to measure the single-document path
+            int single = Math.min(compareCount, files.length);
+            double singleRate = 0;
+            if (single > 0) {
+                long start = System.nanoTime();
+                for (int i = 0; i < single; i++) {
+                    coveoPushAPI.putDocumentOnCoveo(toJson(files[i]), baseUri + files[i].getName());
+                }
+                singleRate = single * 1e9 / (System.nanoTime() - start);
+            }
+
+            // *** PUT the remaining documents as batches
+            long start = System.nanoTime();
+            try (BatchDocumentProducer producer = new BatchDocumentProducer(coveoPushAPI)) {
+                for (int i = single; i < files.length; i++) {
+                    producer.addOrUpdate(toJson(files[i]), baseUri + files[i].getName());
+                }
+            }
+            int batched = files.length - single;
+            double batchRate = batched == 0 ? 0 : batched * 1e9 / (System.nanoTime() - start);
+
+            if (single > 0) {
+                LOGGER.info(String.format("Single-document path: %d documents, %.1f docs/sec", single, singleRate));
+            }
+            LOGGER.info(String.format("Batch path: %d documents, %.1f docs/sec", batched, batchRate));
+            if (single > 0 && singleRate > 0) {
+                LOGGER.info(String.format("Batch path is %.1fx the single-document path", batchRate / singleRate));
+            }
+
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "Failed to push folder", e);
+        }
+
+    }
+
+    /**
+     * Build the metadata-only JSON Document for a file
+     */
+    private static String toJson(File file) throws Exception {
+        StringWriter jsonDocument = new StringWriter();
+        JSONWriter jw = new JSONWriter(jsonDocument);
+        jw.object();
+
+        jw.key("title");
+        jw.value(file.getName());
+
+        jw.key("size");
+        jw.value(file.length());
+
+        jw.key("date");
+        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
+        jw.value(sdf.format(new Date(file.lastModified())));
+
+        jw.key("FileExtension");
+        String extension = FilenameUtils.getExtension(file.getName());
+        // add period to extension; use .txt if no extension was found
+        jw.value(StringUtils.isBlank(extension) ? ".txt" : "." + extension);
+
+        jw.endObject();
+        return jsonDocument.toString();
+    }
+
+}
@@ -0,0 +1,445 @@
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.Deflater;
+
+/**
+ * Copy buffers and {@link Deflater}s shared by all uploads, within a memory budget.
+ * <p>
+ * Released objects are kept for reuse. A new one is created when none is idle and the budget allows it, evicting
+ * idle objects of other kinds if needed; otherwise the caller waits for a release, which throttles uploads instead of
+ * running out of memory. A deflater is counted at its native size, about 256 KB. A thread that already holds pooled
+ * objects never waits, so that flows borrowing several objects cannot deadlock each other; what it borrows over the
+ * budget is counted as an overdraft. An object may be released by another thread than the one that acquired it.
+ * <p>
+ * Waits are on a {@link ReentrantLock} rather than a monitor, so that a waiting virtual thread does not pin its
+ * carrier thread.
+ * <p>
+ * Buffers are heap arrays rather than direct buffers: every consumer (streams, deflaters, the HTTP body publisher)
+ * takes byte arrays, and a direct buffer would add a copy on each read.
+ * <p>
+ * Its {@link #getStats()} can be exposed as a JMX MXBean named <code>CoveoPushAPI:type=BufferPool</code>.
+ */
+public class BufferPool {
+
+    /**
+     * The JMX view of a pool
+     */
+    public interface BufferPoolMXBean {
+        long getBudget();
+
+        /** bytes of the objects in use and idle */
+        long getAllocatedBytes();
+
+        long getInUseBytes();
+
+        long getPeakInUseBytes();
+
+        int getIdleBuffers();
+
+        int getIdleDeflaters();
+
+        long getAcquisitions();
+
+        /** number of acquisitions that waited for a release */
+        long getWaits();
+
+        double getWaitMillis();
+
+        /** number of acquisitions over the budget, by threads already holding pooled objects */
+        long getOverdrafts();
+    }
+
+    public static final int BUFFER_SIZE = StreamTransfer.BUFFER_SIZE;
+    public static final long DEFAULT_BUDGET = 64L * 1024 * 1024;
+
+    // zlib deflate state at the default window and memory levels: 128 KB window + 128 KB hash chains, plus headers
+    static final long DEFLATER_COST = 264 * 1024;
+
+    private static BufferPool defaultPool;
+
+    private final long budget;
+    private final ArrayDeque<byte[]> idleBuffers = new ArrayDeque<>();
+    // idle deflaters, by (level + 1) * 2 + nowrap
+    private final List<ArrayDeque<Deflater>> idleDeflaters = new ArrayList<>();
+    private int idleDeflaterCount;
+    // the thread that acquired each object in use, and the number of objects each thread holds, to let holders
+    // borrow past the budget rather than wait; counted down on release, whichever thread releases
+    private final Map<Object, Thread> owners = new IdentityHashMap<>();
+    private final Map<Thread, Integer> holders = new HashMap<>();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition freed = lock.newCondition();
+    private int waiting;
+
+    private long allocated;
+    private long inUse;
+    private long peakInUse;
+    private long acquisitions;
+    private long waits;
+    private long waitNanos;
+    private long overdrafts;
+    private final BufferPoolMXBean stats = new Stats();
+
+    /**
+     * @param budget bytes of buffers and deflaters, in use and idle, beyond which acquisitions wait
+     */
+    public BufferPool(long budget) {
+        if (budget < BUFFER_SIZE + DEFLATER_COST) {
+            throw new IllegalArgumentException("Budget is too small: " + budget);
+        }
+        this.budget = budget;
+        for (int i = 0; i < 22; i++) {
+            idleDeflaters.add(new ArrayDeque<>());
+        }
+    }
+
+    /**
+     * @return the pool used by the client, with the default budget unless {@link #setDefault(BufferPool)} was called
+     */
+    public static synchronized BufferPool getDefault() {
+        if (defaultPool == null) {
+            defaultPool = new BufferPool(DEFAULT_BUDGET);
+        }
+        return defaultPool;
+    }
+
+    /**
+     * Replace the pool used by the client, e.g. with another budget, before any upload
+     */
+    public static synchronized void setDefault(BufferPool pool) {
+        defaultPool = pool;
+    }
+
+    /**
+     * @return a buffer of {@link #BUFFER_SIZE} bytes, with undefined content, to give back with
+     * {@link #releaseBuffer(byte[])}
+     */
+    public byte[] acquireBuffer() throws InterruptedIOException {
+        lock.lock();
+        long waitStart = 0;
+        try {
+            while (true) {
+                byte[] buffer = idleBuffers.poll();
+                if (buffer == null && makeRoom(BUFFER_SIZE, true)) {
+                    allocated += BUFFER_SIZE;
+                    buffer = new byte[BUFFER_SIZE];
+                }
+                if (buffer != null) {
+                    taken(buffer, BUFFER_SIZE);
+                    return buffer;
+                }
+                waitStart = await(waitStart);
+            }
+        } finally {
+            waited(waitStart);
+            lock.unlock();
+        }
+    }
+
+    public void releaseBuffer(byte[] buffer) {
+        lock.lock();
+        try {
+            if (allocated > budget) {
+                // borrowed over the budget
+                allocated -= BUFFER_SIZE;
+            } else {
+                idleBuffers.push(buffer);
+            }
+            released(buffer, BUFFER_SIZE);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param level  0-9 or {@link Deflater#DEFAULT_COMPRESSION}
+     * @param nowrap true for raw deflate, false for zlib
+     * @return a reset deflater, to give back with {@link #releaseDeflater(Deflater, int, boolean)} with the same
+     * arguments
+     */
+    public Deflater acquireDeflater(int level, boolean nowrap) throws InterruptedIOException {
+        return acquireDeflater(level, nowrap, true);
+    }
+
+    /**
+     * {@link #acquireDeflater(int, boolean)} that never waits, going over the budget instead, for compute threads
+     * that must not block
+     */
+    Deflater borrowDeflater(int level, boolean nowrap) {
+        try {
+            return acquireDeflater(level, nowrap, false);
+        } catch (InterruptedIOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Reset a deflater and keep it for reuse, or free it if the pool is over its budget
+     */
+    public void releaseDeflater(Deflater deflater, int level, boolean nowrap) {
+        lock.lock();
+        try {
+            if (allocated > budget) {
+                // borrowed over the budget
+                deflater.end();
+                allocated -= DEFLATER_COST;
+            } else {
+                deflater.reset();
+                idleDeflaters.get(key(level, nowrap)).push(deflater);
+                idleDeflaterCount++;
+            }
+            released(deflater, DEFLATER_COST);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Deflater acquireDeflater(int level, boolean nowrap, boolean mayWait) throws InterruptedIOException {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid compression level: " + level);
+        }
+        ArrayDeque<Deflater> idle = idleDeflaters.get(key(level, nowrap));
+        lock.lock();
+        long waitStart = 0;
+        try {
+            while (true) {
+                Deflater deflater = idle.poll();
+                if (deflater != null) {
+                    idleDeflaterCount--;
+                } else if (makeRoom(DEFLATER_COST, mayWait)) {
+                    allocated += DEFLATER_COST;
+                    deflater = new Deflater(level, nowrap);
+                }
+                if (deflater != null) {
+                    taken(deflater, DEFLATER_COST);
+                    return deflater;
+                }
+                waitStart = await(waitStart);
+            }
+        } finally {
+            waited(waitStart);
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Free idle objects until <code>cost</code> more bytes fit in the budget
+     *
+     * @return false if the caller has to wait
+     */
+    private boolean makeRoom(long cost, boolean mayWait) {
+        while (allocated + cost > budget) {
+            if (idleDeflaterCount > 0) {
+                for (ArrayDeque<Deflater> idle : idleDeflaters) {
+                    Deflater deflater = idle.poll();
+                    if (deflater != null) {
+                        deflater.end();
+                        idleDeflaterCount--;
+                        allocated -= DEFLATER_COST;
+                        break;
+                    }
+                }
+            } else if (!idleBuffers.isEmpty()) {
+                idleBuffers.pop();
+                allocated -= BUFFER_SIZE;
+            } else if (!mayWait || holders.containsKey(Thread.currentThread())) {
+                overdrafts++;
+                return true;
+            } else {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long await(long waitStart) throws InterruptedIOException {
+        if (waitStart == 0) {
+            waits++;
+            waitStart = System.nanoTime();
+        }
+        waiting++;
+        try {
+            freed.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for pooled memory");
+        } finally {
+            waiting--;
+        }
+        return waitStart;
+    }
+
+    private void waited(long waitStart) {
+        if (waitStart != 0) {
+            waitNanos += System.nanoTime() - waitStart;
+        }
+    }
+
+    private void taken(Object object, long cost) {
+        inUse += cost;
+        peakInUse = Math.max(peakInUse, inUse);
+        acquisitions++;
+        Thread owner = Thread.currentThread();
+        owners.put(object, owner);
+        holders.merge(owner, 1, Integer::sum);
+    }
+
+    private void released(Object object, long cost) {
+        inUse -= cost;
+        Thread owner = owners.remove(object);
+        if (owner != null) {
+            holders.computeIfPresent(owner, (thread, count) -> count == 1 ? null : count - 1);
+        }
+        if (waiting > 0) {
+            freed.signalAll();
+        }
+    }
+
+    private static int key(int level, boolean nowrap) {
+        return (level + 1) * 2 + (nowrap ? 1 : 0);
+    }
+
+    /**
+     * Register the MXBean of this pool with the platform MBean server, unless already registered
+     */
+    public void registerMBean() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(PushMetrics.JMX_DOMAIN + ":type=BufferPool");
+        synchronized (BufferPool.class) {
+            if (!server.isRegistered(name)) {
+                server.registerMBean(stats, name);
+            }
+        }
+    }
+
+    /**
+     * @return the live counters of this pool
+     */
+    public BufferPoolMXBean getStats() {
+        return stats;
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return String.format("budget=%d, allocated=%d, in use=%d, peak in use=%d, idle buffers=%d, idle deflaters=%d, acquisitions=%d, waits=%d (%.1f ms), overdrafts=%d",
+                    budget, allocated, inUse, peakInUse, idleBuffers.size(), idleDeflaterCount, acquisitions, waits,
+                    waitNanos / 1e6, overdrafts);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Live view of the counters of the pool, read under its lock
+     */
+    private class Stats implements BufferPoolMXBean {
+        @Override
+        public long getBudget() {
+            return budget;
+        }
+
+        @Override
+        public long getAllocatedBytes() {
+            lock.lock();
+            try {
+                return allocated;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public long getInUseBytes() {
+            lock.lock();
+            try {
+                return inUse;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public long getPeakInUseBytes() {
+            lock.lock();
+            try {
+                return peakInUse;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public int getIdleBuffers() {
+            lock.lock();
+            try {
+                return idleBuffers.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public int getIdleDeflaters() {
+            lock.lock();
+            try {
+                return idleDeflaterCount;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public long getAcquisitions() {
+            lock.lock();
+            try {
+                return acquisitions;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public long getWaits() {
+            lock.lock();
+            try {
+                return waits;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public double getWaitMillis() {
+            lock.lock();
+            try {
+                return waitNanos / 1e6;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public long getOverdrafts() {
+            lock.lock();
+            try {
+                return overdrafts;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,204 @@
+import org.apache.commons.cli.*;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+public class BulkIngest {
+
+    private static final Logger LOGGER =
+            Logger.getLogger(BulkIngest.class.getName());
+
+    /**
+     * Usage: BulkIngest -o coveochadjohnson01 -s coveochadjohnson01-x4vdgehj6st4bvt6ur3wmx2poi
+     *              -a __________-____-____-____-____________ [-f "/Users/cjohnson/somefolder"]
+     *              [-u http://www.test.com/somefolder/] [-t 4] [-i 1048576] [-e auto|virtual|platform]
+     *
+     * Pushes every file of a folder tree, or, without <code>-f</code>, every file of an NDJSON manifest read from
+     * stdin, through an {@link IngestPipeline}. Each manifest line is a JSON object with a <code>path</code>, an
+     * optional <code>docId</code>, and any other field, which is added to the JSON Document:
+     * <pre>
+     * {"path": "/data/report.pdf", "docId": "http://www.test.com/report.pdf", "title": "Report"}
+     * </pre>
+     * DocIds default to <code>-u</code> followed by the path relative to the folder (or the manifest path), and to
+     * the file URI without <code>-u</code>. The stage workers run on virtual or platform threads as chosen with
+     * <code>-e</code>.
+     *
+     * @param args
+     */
+    public static void main(String[] args) {
+
+        String organizationId = null;
+        String sourceId = null;
+        String accessToken = null;
+        String folderPath = null;
+        String baseUri = null;
+        int threads = 4;
+        long inlineThreshold = FileDocumentPusher.DEFAULT_INLINE_THRESHOLD;
+        PushExecutor.Mode executorMode = PushExecutor.Mode.AUTO;
+
+        // create the command line parser
+        CommandLineParser parser = new DefaultParser();
+
+        // create the Options
+        Options options = new Options();
+        options.addOption(Option.builder("o")
+                .longOpt("organization-id")
+                .desc("Coveo Organization ID")
+                .hasArg().required().build());
+        options.addOption(Option.builder("s")
+                .longOpt("source-id")
+                .desc("Coveo Source ID")
+                .hasArg().required().build());
+        options.addOption(Option.builder("a")
+                .longOpt("access-token")
+                .desc("Coveo Source Access Token")
+                .hasArg().required().build());
+        options.addOption(Option.builder("f")
+                .longOpt("folder")
+                .desc("Path to the folder tree to push (default: an NDJSON manifest on stdin)")
+                .hasArg().build());
+        options.addOption(Option.builder("u")
+                .longOpt("base-uri")
+                .desc("Prefix of the Coveo Document IDs (URI); the relative path of each file is appended to it")
+                .hasArg().build());
+        options.addOption(Option.builder("t")
+                .longOpt("threads")
+                .desc("Number of threads of each pipeline stage (default 4)")
+                .hasArg().build());
+        options.addOption(Option.builder("i")
+                .longOpt("inline-threshold")
+                .desc("Files smaller than this many bytes are embedded in their document (default 1048576)")
+                .hasArg().build());
+        options.addOption(Option.builder("e")
+                .longOpt("executor")
+                .desc("auto, virtual or platform threads for the stage workers (default auto: virtual on Java 21 or later)")
+                .hasArg().build());
+
+        try {
+            // parse the command line arguments
+            CommandLine line = parser.parse(options, args);
+
+            organizationId = line.getOptionValue("o");
+            sourceId = line.getOptionValue("s");
+            accessToken = line.getOptionValue("a");
+            folderPath = line.getOptionValue("f");
+            baseUri = line.getOptionValue("u");
+            threads = Integer.parseInt(line.getOptionValue("t", String.valueOf(threads)));
+            inlineThreshold = Long.parseLong(line.getOptionValue("i", String.valueOf(inlineThreshold)));
+            if (line.hasOption("e")) {
+                executorMode = PushExecutor.Mode.valueOf(line.getOptionValue("e").toUpperCase());
+            }
+
+        } catch (ParseException | IllegalArgumentException exp) {
+            HelpFormatter formatter = new HelpFormatter();
+            formatter.printHelp("BulkIngest <args>", options);
+            System.exit(0);
+        }
+
+        // Construct CoveoPushAPI object
+        CoveoPushAPI coveoPushAPI = new CoveoPushAPI(organizationId, sourceId, accessToken);
+
+        // *** Set Source Status to REBUILD for the time of the job, then back to IDLE ***
+        long start = System.nanoTime();
+        IngestPipeline.Result result = null;
+        try (S3FilePool s3FilePool = new S3FilePool(coveoPushAPI);
+             SourceStatusSession.Job job = coveoPushAPI.getStatusSession().begin("REBUILD");
+             IngestPipeline pipeline = new IngestPipeline(coveoPushAPI, new CompressionSelector(), inlineThreshold, threads,
+                     executorMode)) {
+            // Fetch the S3 upload URLs ahead of the upload stage
+            coveoPushAPI.setS3FilePool(s3FilePool);
+            LOGGER.info("Source status: " + job.getStatus());
+            result = pipeline.getResult();
+
+            if (folderPath != null) {
+                submitFolder(pipeline, new File(folderPath), baseUri);
+            } else {
+                submitManifest(pipeline, baseUri);
+            }
+
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "Failed to ingest files", e);
+        }
+
+        if (result != null) {
+            double seconds = (System.nanoTime() - start) / 1e9;
+            LOGGER.info(String.format("%s in %.1f s, %.1f files/sec, %.2f MB/sec read", result, seconds,
+                    result.committed.get() / seconds, result.bytesRead.get() / (1024.0 * 1024) / seconds));
+            LOGGER.info("Compression:" + System.lineSeparator() + coveoPushAPI.getCompressionStats());
+        }
+
+    }
+
+    /**
+     * Submit the files of a folder tree as it is walked
+     */
+    private static void submitFolder(IngestPipeline pipeline, File root, String baseUri) throws Exception {
+        Path rootPath = root.toPath();
+        try (Stream<Path> paths = Files.walk(rootPath)) {
+            Iterator<Path> it = paths.filter(Files::isRegularFile).iterator();
+            while (it.hasNext()) {
+                Path path = it.next();
+                pipeline.submit(path.toFile(), docId(baseUri, rootPath.relativize(path), path), null);
+            }
+        }
+    }
+
+    /**
+     * Submit the files of an NDJSON manifest read from stdin, line by line
+     */
+    private static void submitManifest(IngestPipeline pipeline, String baseUri) throws Exception {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        String line;
+        long lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            JSONObject entry;
+            try {
+                entry = new JSONObject(line);
+            } catch (Exception e) {
+                LOGGER.severe("Skipping manifest line " + lineNumber + ", not a JSON object: " + e.getMessage());
+                continue;
+            }
+            String path = entry.optString("path", null);
+            if (path == null) {
+                LOGGER.severe("Skipping manifest line " + lineNumber + ", it has no path");
+                continue;
+            }
+            File file = new File(path);
+            String docId = entry.optString("docId", null);
+            if (docId == null) {
+                docId = docId(baseUri, file.toPath(), file.toPath());
+            }
+            entry.remove("path");
+            entry.remove("docId");
+            pipeline.submit(file, docId, entry.length() == 0 ? null : entry);
+        }
+    }
+
+    /**
+     * @return <code>baseUri</code> followed by the relative path of a file, or the file URI without a base URI
+     */
+    private static String docId(String baseUri, Path relative, Path path) {
+        if (baseUri == null) {
+            return path.toAbsolutePath().toUri().toString();
+        }
+        String relativePath = relative.toString().replace(File.separatorChar, '/');
+        while (relativePath.startsWith("/")) {
+            relativePath = relativePath.substring(1);
+        }
+        return baseUri + relativePath;
+    }
+
+}
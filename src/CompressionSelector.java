@@ -0,0 +1,137 @@
+import org.apache.commons.io.FilenameUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+/**
+ * Chooses how to compress a file before it is uploaded to S3, from its extension and a sample of its content.
+ * <p>
+ * Formats that are compressed already (images, audio, video, archives, Office Open XML documents) are sent as is,
+ * since deflating them costs CPU for no gain. Other files have their first blocks deflated at the fastest level:
+ * if that barely shrinks them they are sent as is, if it shrinks them moderately they are compressed at the fastest
+ * level, and if they are very compressible they are compressed at the default level, which gains the most there.
+ */
+public class CompressionSelector {
+
+    public static final int DEFAULT_SAMPLE_SIZE = 256 * 1024;
+
+    // sampled ratios (compressed / original) above which a file is not worth compressing, or worth the default level
+    private static final double INCOMPRESSIBLE_RATIO = 0.9;
+    private static final double FAST_LEVEL_RATIO = 0.5;
+
+    private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "jpg", "jpeg", "png", "gif", "webp", "heic",
+            "mp3", "m4a", "aac", "ogg", "flac",
+            "mp4", "m4v", "mov", "avi", "mkv", "webm",
+            "zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "jar",
+            "docx", "xlsx", "pptx", "odt", "ods", "odp", "epub"));
+
+    /**
+     * How to compress one file
+     */
+    public static class Choice {
+        public static final Choice UNCOMPRESSED = new Choice(CompressionType.UNCOMPRESSED, Deflater.NO_COMPRESSION);
+        public static final Choice ZLIB = new Choice(CompressionType.ZLIB, Deflater.DEFAULT_COMPRESSION);
+
+        public final CompressionType type;
+        public final int level;
+
+        public Choice(CompressionType type, int level) {
+            this.type = type;
+            this.level = level;
+        }
+
+        @Override
+        public String toString() {
+            if (type == CompressionType.UNCOMPRESSED) {
+                return type.name();
+            }
+            return type + " level " + (level == Deflater.DEFAULT_COMPRESSION ? 6 : level);
+        }
+    }
+
+    private final CompressionType compressedType;
+    private final int sampleSize;
+
+    /**
+     * A selector that compresses with zlib, sampling the default size
+     */
+    public CompressionSelector() {
+        this(CompressionType.ZLIB, DEFAULT_SAMPLE_SIZE);
+    }
+
+    /**
+     * @param compressedType the type files worth compressing are compressed with: DEFLATE, ZLIB or GZIP
+     * @param sampleSize     number of bytes read from the start of a file to estimate its compressibility
+     */
+    public CompressionSelector(CompressionType compressedType, int sampleSize) {
+        if (compressedType == CompressionType.UNCOMPRESSED) {
+            throw new IllegalArgumentException("Not a compressed type: " + compressedType);
+        }
+        this.compressedType = compressedType;
+        this.sampleSize = sampleSize;
+    }
+
+    /**
+     * @return how the file should be compressed
+     */
+    public Choice choose(File file) throws IOException {
+        String extension = FilenameUtils.getExtension(file.getName()).toLowerCase(Locale.ROOT);
+        if (COMPRESSED_EXTENSIONS.contains(extension) || file.length() == 0) {
+            return Choice.UNCOMPRESSED;
+        }
+
+        double ratio = sampleRatio(file);
+        if (ratio >= INCOMPRESSIBLE_RATIO) {
+            return Choice.UNCOMPRESSED;
+        }
+        if (ratio >= FAST_LEVEL_RATIO) {
+            return new Choice(compressedType, Deflater.BEST_SPEED);
+        }
+        return new Choice(compressedType, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @return the compressed / original size ratio of the first bytes of a file, at the fastest level
+     */
+    private double sampleRatio(File file) throws IOException {
+        // deflated as it is read, through pooled buffers, rather than loaded whole
+        BufferPool pool = BufferPool.getDefault();
+        Deflater deflater = pool.acquireDeflater(Deflater.BEST_SPEED, true);
+        byte[] input = pool.acquireBuffer();
+        byte[] output = pool.acquireBuffer();
+        try (InputStream in = new FileInputStream(file)) {
+            long length = 0;
+            long compressed = 0;
+            int n;
+            while (length < sampleSize
+                    && (n = in.read(input, 0, (int) Math.min(input.length, sampleSize - length))) > 0) {
+                length += n;
+                deflater.setInput(input, 0, n);
+                while (!deflater.needsInput()) {
+                    compressed += deflater.deflate(output);
+                }
+            }
+            if (length == 0) {
+                return 1;
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                compressed += deflater.deflate(output);
+            }
+            return (double) compressed / length;
+        } finally {
+            pool.releaseBuffer(output);
+            pool.releaseBuffer(input);
+            pool.releaseDeflater(deflater, Deflater.BEST_SPEED, true);
+        }
+    }
+
+}
@@ -0,0 +1,89 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bytes saved and CPU time spent by each {@link CompressionSelector.Choice}, over the files uploaded by a client.
+ * <p>
+ * CPU time is the time the compressing threads spent producing the uploads, both passes included when a file is
+ * compressed twice to learn its length. It falls back to elapsed time where the JVM does not measure thread CPU time.
+ */
+public class CompressionStats {
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final boolean CPU_TIME = THREADS.isCurrentThreadCpuTimeSupported();
+
+    private static class Counters {
+        final LongAdder files = new LongAdder();
+        final LongAdder originalBytes = new LongAdder();
+        final LongAdder compressedBytes = new LongAdder();
+        final LongAdder cpuNanos = new LongAdder();
+    }
+
+    private final Map<String, Counters> counters = new ConcurrentHashMap<>();
+
+    /**
+     * Record one uploaded file
+     */
+    public void record(CompressionSelector.Choice choice, long originalBytes, long compressedBytes, long cpuNanos) {
+        Counters c = counters.computeIfAbsent(choice.toString(), k -> new Counters());
+        c.files.increment();
+        c.originalBytes.add(originalBytes);
+        c.compressedBytes.add(compressedBytes);
+        c.cpuNanos.add(cpuNanos);
+    }
+
+    /**
+     * @return the bytes saved by compression over all choices
+     */
+    public long getBytesSaved() {
+        long saved = 0;
+        for (Counters c : counters.values()) {
+            saved += c.originalBytes.sum() - c.compressedBytes.sum();
+        }
+        return saved;
+    }
+
+    /**
+     * @return the CPU time spent compressing over all choices, in nanoseconds
+     */
+    public long getCpuNanos() {
+        long nanos = 0;
+        for (Counters c : counters.values()) {
+            nanos += c.cpuNanos.sum();
+        }
+        return nanos;
+    }
+
+    /**
+     * @return the CPU time of the current thread, in nanoseconds
+     */
+    static long currentThreadCpuNanos() {
+        return CPU_TIME ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    /**
+     * One line per choice, e.g. <code>ZLIB level 1: 12 files, 10485760 => 3145728 bytes (saved 70.0%), CPU 120 ms</code>
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Counters> entry : new TreeMap<>(counters).entrySet()) {
+            Counters c = entry.getValue();
+            long original = c.originalBytes.sum();
+            long compressed = c.compressedBytes.sum();
+            if (sb.length() > 0) {
+                sb.append(System.lineSeparator());
+            }
+            sb.append(entry.getKey()).append(": ").append(c.files.sum()).append(" files, ")
+                    .append(original).append(" => ").append(compressed).append(" bytes (saved ")
+                    .append(String.format("%.1f", original == 0 ? 0.0 : 100.0 * (original - compressed) / original))
+                    .append("%), CPU ").append(c.cpuNanos.sum() / 1000000).append(" ms");
+        }
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,206 @@
+import java.io.*;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Deflater;
+
+/**
+ * The <code>compressionType</code> values of a Coveo document that the JDK can produce, and how to produce them.
+ * The content of a file uploaded to S3 must be compressed with the type its JSON Document declares.
+ */
+public enum CompressionType {
+
+    UNCOMPRESSED,
+    /** raw deflate data, without header or trailer */
+    DEFLATE,
+    /** deflate data in a zlib wrapper (RFC 1950) */
+    ZLIB,
+    /** deflate data in a gzip wrapper (RFC 1952) */
+    GZIP;
+
+    // below this size, splitting a file into blocks costs more than compressing it on one core
+    private static final long PARALLEL_COMPRESSION_THRESHOLD = 4 * 1024 * 1024;
+
+    /**
+     * Open a stream over the content of a file, compressed with this type.
+     * Compressing the same file twice with the same arguments yields the same bytes.
+     *
+     * @param source   the file to compress
+     * @param level    the deflate level, 0-9 or {@link Deflater#DEFAULT_COMPRESSION}; ignored for UNCOMPRESSED
+     * @param parallel compressor for large ZLIB files, or null to compress on a single core
+     */
+    public InputStream open(File source, int level, ParallelDeflater parallel) throws IOException {
+        switch (this) {
+            case UNCOMPRESSED:
+                return new FileInputStream(source);
+            case DEFLATE:
+                return new DeflatingInputStream(new FileInputStream(source), level, true);
+            case ZLIB:
+                if (parallel != null && source.length() >= PARALLEL_COMPRESSION_THRESHOLD) {
+                    return parallel.compress(new FileInputStream(source), level);
+                }
+                return new DeflatingInputStream(new FileInputStream(source), level, false);
+            case GZIP:
+                return gzip(new FileInputStream(source), level);
+            default:
+                throw new IllegalStateException(name());
+        }
+    }
+
+    /**
+     * gzip = fixed header, raw deflate data, then the CRC-32 and length of the original content
+     */
+    private static InputStream gzip(InputStream source, int level) throws IOException {
+        CheckedInputStream checked = new CheckedInputStream(source, new CRC32());
+        long[] length = new long[1];
+        InputStream counted = new FilterInputStream(checked) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    length[0]++;
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n > 0) {
+                    length[0] += n;
+                }
+                return n;
+            }
+        };
+        byte[] header = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+        InputStream trailer = new InputStream() {
+            private byte[] bytes;
+            private int position;
+
+            @Override
+            public int read() {
+                if (bytes == null) {
+                    // the deflate data has been read whole by now
+                    long crc = checked.getChecksum().getValue();
+                    long size = length[0];
+                    bytes = new byte[]{(byte) crc, (byte) (crc >>> 8), (byte) (crc >>> 16), (byte) (crc >>> 24),
+                            (byte) size, (byte) (size >>> 8), (byte) (size >>> 16), (byte) (size >>> 24)};
+                }
+                return position < bytes.length ? bytes[position++] & 0xff : -1;
+            }
+        };
+        return new SequenceInputStream(new ByteArrayInputStream(header),
+                new SequenceInputStream(new DeflatingInputStream(counted, level, true), trailer));
+    }
+
+    /**
+     * @return a stream over the content of <code>in</code>, deflated with a pooled {@link Deflater} and buffer that
+     * are given back when it is closed
+     */
+    static InputStream deflating(InputStream in, int level, boolean nowrap) throws IOException {
+        return new DeflatingInputStream(in, level, nowrap);
+    }
+
+    /**
+     * Deflating inputstream with a large buffer, both from the {@link BufferPool}, given back when closed
+     */
+    private static class DeflatingInputStream extends FilterInputStream {
+        private final BufferPool pool = BufferPool.getDefault();
+        private final int level;
+        private final boolean nowrap;
+        private Deflater deflater;
+        private byte[] buffer;
+
+        DeflatingInputStream(InputStream in, int level, boolean nowrap) throws IOException {
+            super(in);
+            this.level = level;
+            this.nowrap = nowrap;
+            deflater = pool.acquireDeflater(level, nowrap);
+            try {
+                buffer = pool.acquireBuffer();
+            } catch (IOException e) {
+                pool.releaseDeflater(deflater, level, nowrap);
+                throw e;
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (deflater == null) {
+                throw new IOException("Stream closed");
+            }
+            if (len == 0) {
+                return 0;
+            }
+            while (!deflater.finished()) {
+                if (deflater.needsInput()) {
+                    int n = in.read(buffer, 0, buffer.length);
+                    if (n < 0) {
+                        deflater.finish();
+                    } else {
+                        deflater.setInput(buffer, 0, n);
+                    }
+                }
+                int n = deflater.deflate(b, off, len);
+                if (n > 0) {
+                    return n;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            byte[] b = new byte[(int) Math.min(n, 512)];
+            long skipped = 0;
+            int length;
+            while (skipped < n && (length = read(b, 0, (int) Math.min(b.length, n - skipped))) > 0) {
+                skipped += length;
+            }
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            if (deflater == null) {
+                throw new IOException("Stream closed");
+            }
+            return deflater.finished() ? 0 : 1;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public synchronized void mark(int readlimit) {
+        }
+
+        @Override
+        public synchronized void reset() throws IOException {
+            throw new IOException("mark/reset not supported");
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (deflater == null) {
+                return;
+            }
+            try {
+                in.close();
+            } finally {
+                pool.releaseDeflater(deflater, level, nowrap);
+                pool.releaseBuffer(buffer);
+                deflater = null;
+                buffer = null;
+            }
+        }
+    }
+
+}
@@ -1,28 +1,94 @@
+import org.apache.commons.io.IOUtils;
 import org.json.JSONObject;
 import org.json.JSONTokener;
 
-import javax.net.ssl.HttpsURLConnection;
 import java.io.*;
-import java.net.URL;
+import java.net.URI;
 import java.net.URLEncoder;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Duration;
 import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Deflater;
 
 public class CoveoPushAPI {
 
+    public static final String DEFAULT_BASE_URL = "https://push.cloud.coveo.com";
+
     private String organizationId;
     private String sourceId;
     private String accessToken;
 
+    private final String baseUrl;
+    private final PushTransport transport;
+    private final RequestGovernor governor;
+
+    private Duration requestTimeout = DEFAULT_REQUEST_TIMEOUT;
+    private boolean chunkedUploads = false;
+    private int spillBufferSize = DEFAULT_SPILL_BUFFER_SIZE;
+    private ParallelDeflater parallelDeflater =
+            Runtime.getRuntime().availableProcessors() > 1 ? new ParallelDeflater() : null;
+    private final CompressionStats compressionStats = new CompressionStats();
+    private S3FilePool s3FilePool;
+    private ArtifactCache artifactCache;
+    private int uploadAttempts = DEFAULT_UPLOAD_ATTEMPTS;
+    private Duration uploadTimeout = DEFAULT_UPLOAD_TIMEOUT;
+    private long uploadMinBytesPerSecond = DEFAULT_UPLOAD_MIN_BYTES_PER_SECOND;
+    private final SourceStatusSession statusSession = new SourceStatusSession(this);
+    private final PushMetrics metrics = new PushMetrics();
+    // copied on write, so that notifying the listeners takes neither a lock nor a copy
+    private volatile PushMetricsListener[] metricsListeners = {metrics};
+
+    private static final Duration DEFAULT_REQUEST_TIMEOUT = Duration.ofSeconds(10);
+    private static final int DEFAULT_SPILL_BUFFER_SIZE = 8 * 1024 * 1024;
+    private static final int DEFAULT_UPLOAD_ATTEMPTS = 3;
+    private static final Duration DEFAULT_UPLOAD_TIMEOUT = Duration.ofSeconds(30);
+    // a slow link, so that only stalled uploads time out
+    private static final long DEFAULT_UPLOAD_MIN_BYTES_PER_SECOND = 64 * 1024;
+
     private static final Logger LOGGER =
             Logger.getLogger(CoveoPushAPI.class.getName());
 
     public CoveoPushAPI(String organizationId, String sourceId, String accessToken) {
+        this(organizationId, sourceId, accessToken, DEFAULT_BASE_URL, HttpClientTransport.getDefault());
+    }
+
+    /**
+     * @param organizationId
+     * @param sourceId
+     * @param accessToken
+     * @param baseUrl   the Push API root, e.g. {@link #DEFAULT_BASE_URL}, or a local stub server
+     * @param transport sends every request of this client
+     */
+    public CoveoPushAPI(String organizationId, String sourceId, String accessToken, String baseUrl, PushTransport transport) {
+        this(organizationId, sourceId, accessToken, baseUrl, transport, new RequestGovernor());
+    }
+
+    /**
+     * @param organizationId
+     * @param sourceId
+     * @param accessToken
+     * @param baseUrl   the Push API root, e.g. {@link #DEFAULT_BASE_URL}, or a local stub server
+     * @param transport sends every request of this client
+     * @param governor  retries and rate-limits every request of this client; may be shared with other clients
+     */
+    public CoveoPushAPI(String organizationId, String sourceId, String accessToken, String baseUrl, PushTransport transport,
+                        RequestGovernor governor) {
         this.organizationId = organizationId;
         this.sourceId = sourceId;
         this.accessToken = accessToken;
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+        this.transport = transport;
+        this.governor = governor;
     }
 
     /**
@@ -31,36 +97,36 @@ public class CoveoPushAPI {
      * @param statusType
      */
     public void setSourceStatus(String statusType) throws Exception {
+        execute(PushStage.SOURCE_STATUS, sourceStatusRequest(statusType), this::handleSourceStatus);
+    }
 
-        // Build the "status" API URL
-        URL url = new URL("https://push.cloud.coveo.com/v1/organizations/" + organizationId + "/sources/" + sourceId + "/status?statusType=" + statusType);
-        LOGGER.info("=>> Setting Source Status: " + url.toString());
-
-        HttpsURLConnection conn = (HttpsURLConnection) url.openConnection();
-
-        // Add the Authorization header with the accessToken
-        conn.setRequestProperty("Authorization", "Bearer " + accessToken);
-
-        // Set parameters of the HttpURLConnection
-        conn.setReadTimeout(10000);
-        conn.setConnectTimeout(15000);
-        conn.setRequestMethod("POST");
-        conn.setDoInput(true);
-        conn.setDoOutput(true);
-
-        // Open the URL connection
-        conn.connect();
+    /**
+     * @return the session that jobs of this client use to share the source status, instead of each setting it
+     * with {@link #setSourceStatus(String)}
+     */
+    public SourceStatusSession getStatusSession() {
+        return statusSession;
+    }
 
-        int responseCode = conn.getResponseCode();
-        LOGGER.info("<<= Response Code = " + responseCode + " " + conn.getResponseMessage());
+    /**
+     * Asynchronous {@link #setSourceStatus(String)}
+     */
+    public CompletableFuture<Void> setSourceStatusAsync(String statusType) {
+        return executeAsync(PushStage.SOURCE_STATUS, () -> sourceStatusRequest(statusType), this::handleSourceStatus);
+    }
 
-        if (responseCode != 201) {
-            // If the request failed in some way. Check the error stream for information
-            InputStream is = conn.getErrorStream();
-            LOGGER.severe("Error = " + readStream(is));
-            throw new Exception("Unable to set source status");
+    private PushRequest sourceStatusRequest(String statusType) throws Exception {
+        // Build the "status" API URL
+        PushRequest request = apiRequest("POST", sourceUrl() + "/status?statusType=" + URLEncoder.encode(statusType, "UTF-8"));
+        if (LOGGER.isLoggable(Level.INFO)) {
+            LOGGER.info("=>> Setting Source Status: " + request.getUri());
         }
+        return request;
+    }
 
+    private Void handleSourceStatus(PushResponse response) throws Exception {
+        checkResponse(response, 201, "Unable to set source status");
+        return null;
     }
 
     /**
@@ -69,51 +135,58 @@ public class CoveoPushAPI {
      * @return
      */
     public AbstractMap.SimpleEntry<String, String> getS3File() throws Exception {
+        return execute(PushStage.GET_S3_FILE, s3FileRequest(), this::handleS3File);
+    }
 
-        URL url = new URL("https://push.cloud.coveo.com/v1/organizations/" + organizationId + "/files");
-        LOGGER.info("=>> Getting S3 File Info: " + url.toString());
-
-        HttpsURLConnection conn = (HttpsURLConnection) url.openConnection();
+    /**
+     * Asynchronous {@link #getS3File()}
+     */
+    public CompletableFuture<AbstractMap.SimpleEntry<String, String>> getS3FileAsync() {
+        return executeAsync(PushStage.GET_S3_FILE, this::s3FileRequest, this::handleS3File);
+    }
 
-        // Add the Authorization header with the accessToken
-        conn.setRequestProperty("Authorization", "Bearer " + accessToken);
+    /**
+     * Get a pre-signed AWS S3 URL and its fileID: from the S3 file pool if one is set, else with {@link #getS3File()}
+     */
+    public AbstractMap.SimpleEntry<String, String> takeS3File() throws Exception {
+        S3FilePool pool = s3FilePool;
+        return pool != null ? pool.take() : getS3File();
+    }
 
-        // Set parameters of the HttpURLConnection
-        conn.setReadTimeout(10000);
-        conn.setConnectTimeout(15000);
-        conn.setRequestMethod("POST");
-        conn.setDoInput(true);
-        conn.setDoOutput(true);
+    /**
+     * Set the pool {@link #takeS3File()} takes from, or <code>null</code> to fetch each S3 file when it is needed
+     */
+    public void setS3FilePool(S3FilePool s3FilePool) {
+        this.s3FilePool = s3FilePool;
+    }
 
-        // Open the URL connection
-        conn.connect();
+    private PushRequest s3FileRequest() {
+        PushRequest request = apiRequest("POST", baseUrl + "/v1/organizations/" + organizationId + "/files");
+        if (LOGGER.isLoggable(Level.INFO)) {
+            LOGGER.info("=>> Getting S3 File Info: " + request.getUri());
+        }
+        return request;
+    }
 
-        int responseCode = conn.getResponseCode();
-        LOGGER.info("<<= Response Code = " + responseCode + " " + conn.getResponseMessage());
+    private AbstractMap.SimpleEntry<String, String> handleS3File(PushResponse response) throws Exception {
+        checkResponse(response, 201, "Unable to fetching S3 URL");
 
-        if (responseCode == 201) {
-            // If successful, read the response, which contains JSON information
-            InputStream is = conn.getInputStream();
-            BufferedReader reader = new BufferedReader(new InputStreamReader(is));
-            String output = reader.readLine();
+        // If successful, the response contains JSON information
+        String output = response.getBody();
+        if (LOGGER.isLoggable(Level.INFO)) {
             LOGGER.info("<<= Response Body: " + output);
+        }
 
-            // Parse the JSON
-            JSONTokener tokener = new JSONTokener(output);
-            JSONObject root = new JSONObject(tokener);
+        // Parse the JSON
+        JSONTokener tokener = new JSONTokener(output);
+        JSONObject root = new JSONObject(tokener);
 
-            // Extract the uploadUri and fileId
-            String uploadUri = root.getString("uploadUri");
-            String fileId = root.getString("fileId");
+        // Extract the uploadUri and fileId
+        String uploadUri = root.getString("uploadUri");
+        String fileId = root.getString("fileId");
 
-            // return those two values
-            return new AbstractMap.SimpleEntry<>(uploadUri, fileId);
-        } else {
-            // Else the request failed in some way. Check the error stream for information
-            InputStream is = conn.getErrorStream();
-            LOGGER.severe("Error = " + readStream(is));
-            throw new Exception("Unable to fetching S3 URL");
-        }
+        // return those two values
+        return new AbstractMap.SimpleEntry<>(uploadUri, fileId);
     }
 
     /**
@@ -128,11 +201,23 @@ public class CoveoPushAPI {
      */
     public InputStream zlibInputStream(InputStream original, File temp) throws Exception {
 
-        LOGGER.info("Zlib inputstream to temp file: " + temp);
+        if (LOGGER.isLoggable(Level.INFO)) {
+            LOGGER.info("Zlib inputstream to temp file: " + temp);
+        }
+        long start = System.nanoTime();
+        MeteredInputStream counted = new MeteredInputStream(original);
         FileOutputStream fos = new FileOutputStream(temp);
-        DeflaterOutputStream dos = new DeflaterOutputStream(fos);
-
-        doCopy(original, dos); // copy original stream to temp.zlib
+        if (parallelDeflater != null) {
+            try {
+                parallelDeflater.compress(counted, fos); // compress original stream to temp.zlib on all cores
+            } finally {
+                fos.close();
+                original.close();
+            }
+        } else {
+            doCopy(CompressionType.deflating(counted, Deflater.DEFAULT_COMPRESSION, false), fos); // copy original stream to temp.zlib
+        }
+        compressionCompleted(counted.getCount(), temp.length(), System.nanoTime() - start);
 
         FileInputStream zis = new FileInputStream(temp);
         return zis;
@@ -146,43 +231,263 @@ public class CoveoPushAPI {
      * @param uploadUri a pre-signed AWS S3 upload url
      */
     public void putFileOnS3(InputStream in, String uploadUri) throws Exception {
-        URL url = new URL(uploadUri);
-        LOGGER.info("=>> PUT file to S3: " + url.toString());
-        HttpsURLConnection conn = (HttpsURLConnection) url.openConnection();
-
-        // Add the required headers
-        conn.setRequestProperty("Content-Type", "application/octet-stream");
-        conn.setRequestProperty("x-amz-server-side-encryption", "AES256");
-
-        // Set parameters of the HttpURLConnection
-        conn.setReadTimeout(10000);
-        conn.setConnectTimeout(15000);
-        conn.setRequestMethod("PUT");
-        conn.setDoInput(true);
-        conn.setDoOutput(true);
-
-        // write the zlib file to the URL Connection stream
-        BufferedOutputStream bos = new BufferedOutputStream(conn.getOutputStream());
-        try {
-            BufferedInputStream bis = new BufferedInputStream(in);
-            int i;
-            while ((i = bis.read()) >= 0) {
-                bos.write(i);
+        execute(PushStage.PUT_S3, s3PutRequest(uploadUri, RequestBody.ofInputStream(in, streamLength(in))), this::handleS3Put);
+    }
+
+    /**
+     * PUT a file on S3 as is. Unlike {@link #putFileOnS3(InputStream, String)}, the upload can be retried.
+     *
+     * @param file a file, usually zlib-compressed
+     * @param uploadUri a pre-signed AWS S3 upload url
+     */
+    public void putFileOnS3(File file, String uploadUri) throws Exception {
+        RequestBody body = RequestBody.ofFile(file);
+        execute(PushStage.PUT_S3, s3PutRequest(uploadUri, chunkedUploads ? RequestBody.ofStream(body::open, -1) : body), this::handleS3Put);
+    }
+
+    /**
+     * PUT a compressed artifact on S3 with its <code>Content-MD5</code>, so that S3 rejects a corrupted upload. An
+     * upload that still fails after the retries of the {@link RequestGovernor} is attempted again, up to
+     * {@link #setUploadAttempts(int)} times, on a fresh pre-signed URL, as the previous one may have expired; the
+     * artifact is sent again as is, without compressing its source again.
+     *
+     * @param artifact a file of an {@link ArtifactCache}
+     * @return the fileId the artifact was uploaded to
+     */
+    public String putArtifactOnS3(ArtifactCache.Artifact artifact) throws Exception {
+        for (int attempt = 1; ; attempt++) {
+            AbstractMap.SimpleEntry<String, String> s3File = takeS3File();
+            PushRequest request = s3PutRequest(s3File.getKey(), RequestBody.ofFile(artifact.file))
+                    .header("Content-MD5", artifact.md5);
+            try {
+                execute(PushStage.PUT_S3, request, this::handleS3Put);
+                return s3File.getValue();
+            } catch (InterruptedException | InterruptedIOException e) {
+                throw e;
+            } catch (Exception e) {
+                if (attempt >= uploadAttempts) {
+                    throw e;
+                }
+                LOGGER.log(Level.WARNING, "Upload " + attempt + " of " + uploadAttempts + " of " + artifact
+                        + " failed, retrying on a new S3 URL", e);
             }
-            bos.flush();
-        } finally {
-            bos.close();
+        }
+    }
+
+    /**
+     * Asynchronous {@link #putFileOnS3(InputStream, String)}. The inputstream is read by the transport, and must
+     * not be closed before the future completes.
+     */
+    public CompletableFuture<Void> putFileOnS3Async(InputStream in, String uploadUri) {
+        return executeAsync(PushStage.PUT_S3, () -> s3PutRequest(uploadUri, RequestBody.ofInputStream(in, streamLength(in))), this::handleS3Put);
+    }
+
+    /**
+     * Zlib-compress a file and PUT it on S3 without a temp file, and without buffering the whole body.
+     * <p>
+     * With chunked uploads, the file is deflated straight into the socket. Otherwise S3 needs the content length
+     * up front: the compressed file is deflated into a spill buffer of at most <code>spillBufferSize</code> bytes,
+     * and sent from memory if it fits. If it does not fit, the rest is only counted, and the file is deflated a
+     * second time straight into the socket. Memory use is bounded by the spill buffer whatever the file size.
+     *
+     * @param source the file to compress and upload
+     * @param uploadUri a pre-signed AWS S3 upload url
+     * @return the compressed size, in bytes
+     */
+    public long putZlibFileOnS3(File source, String uploadUri) throws Exception {
+        return putCompressedFileOnS3(source, uploadUri, CompressionSelector.Choice.ZLIB);
+    }
+
+    /**
+     * Compress a file as chosen, e.g. by a {@link CompressionSelector}, and PUT it on S3 the way
+     * {@link #putZlibFileOnS3(File, String)} does. Uncompressed files are sent as is, with their length.
+     * The compressed size and compression CPU time are added to the {@link #getCompressionStats()}.
+     *
+     * @param source the file to compress and upload
+     * @param uploadUri a pre-signed AWS S3 upload url
+     * @param choice the compression type and level; the document JSON must declare the same compressionType
+     * @return the size of the uploaded content, in bytes
+     */
+    public long putCompressedFileOnS3(File source, String uploadUri, CompressionSelector.Choice choice) throws Exception {
+        if (choice.type == CompressionType.UNCOMPRESSED) {
+            putFileOnS3(source, uploadUri);
+            compressionStats.record(choice, source.length(), source.length(), 0);
+            return source.length();
+        }
+
+        // both passes must compress the same way
+        ParallelDeflater parallel = parallelDeflater;
+        MeteredInputStream[] meter = new MeteredInputStream[1];
+        if (chunkedUploads) {
+            RequestBody body = RequestBody.ofStream(() -> meter[0] = new MeteredInputStream(
+                    choice.type.open(source, choice.level, parallel)), -1);
+            execute(PushStage.PUT_S3, s3PutRequest(uploadUri, body), this::handleS3Put);
+            compressionStats.record(choice, source.length(), meter[0].getCount(), meter[0].getCpuNanos());
+            compressionCompleted(source.length(), meter[0].getCount(), meter[0].getWallNanos());
+            return meter[0].getCount();
+        }
+
+        // First pass: learn the compressed length, keeping the output if it is small enough
+        SpillBuffer spill = new SpillBuffer(spillBufferSize);
+        long cpuNanos;
+        long wallNanos;
+        try (MeteredInputStream zis = new MeteredInputStream(choice.type.open(source, choice.level, parallel))) {
+            StreamTransfer.copy(zis, spill);
+            cpuNanos = zis.getCpuNanos();
+            wallNanos = zis.getWallNanos();
+        }
+        if (LOGGER.isLoggable(Level.INFO)) {
+            LOGGER.info(choice + " " + source + ": " + source.length() + " => " + spill.getCount() + " bytes"
+                    + (spill.isOverflowed() ? ", streaming a second pass" : ", sending from memory"));
         }
 
-        int responseCode = conn.getResponseCode();
-        LOGGER.info("<<= Response Code = " + responseCode + " " + conn.getResponseMessage());
+        RequestBody body;
+        if (spill.isOverflowed()) {
+            // Second pass: Deflater output is deterministic, so it has the length measured above
+            body = RequestBody.ofStream(() -> meter[0] = new MeteredInputStream(
+                    choice.type.open(source, choice.level, parallel)), spill.getCount());
+        } else {
+            body = RequestBody.ofBytes(spill.toByteArray());
+        }
+        execute(PushStage.PUT_S3, s3PutRequest(uploadUri, body), this::handleS3Put);
+        if (meter[0] != null) {
+            cpuNanos += meter[0].getCpuNanos();
+            wallNanos += meter[0].getWallNanos();
+        }
+        compressionStats.record(choice, source.length(), spill.getCount(), cpuNanos);
+        compressionCompleted(source.length(), spill.getCount(), wallNanos);
+        return spill.getCount();
+    }
+
+    /**
+     * Compress a file into another as chosen, to upload it later with {@link #putFileOnS3(File, String)}.
+     * The compressed size and compression CPU time are added to the {@link #getCompressionStats()}.
+     *
+     * @param source the file to compress
+     * @param target the file the compressed content is written to
+     * @param choice the compression type and level; the document JSON must declare the same compressionType
+     * @return the size of the compressed file, in bytes
+     */
+    public long compressFile(File source, File target, CompressionSelector.Choice choice) throws Exception {
+        long compressed;
+        long cpuNanos;
+        long wallNanos;
+        try (MeteredInputStream in = new MeteredInputStream(choice.type.open(source, choice.level, parallelDeflater));
+             OutputStream out = new FileOutputStream(target)) {
+            compressed = StreamTransfer.copy(in, out);
+            cpuNanos = in.getCpuNanos();
+            wallNanos = in.getWallNanos();
+        }
+        compressionStats.record(choice, source.length(), compressed, cpuNanos);
+        compressionCompleted(source.length(), compressed, wallNanos);
+        return compressed;
+    }
+
+    /**
+     * @return the bytes saved and CPU time spent by the compressed uploads of this client
+     */
+    public CompressionStats getCompressionStats() {
+        return compressionStats;
+    }
+
+    /**
+     * Use chunked transfer encoding for S3 uploads instead of a fixed content length.
+     * AWS S3 pre-signed PUTs require a content length, so only enable this for endpoints that accept chunks.
+     */
+    public void setChunkedUploads(boolean chunkedUploads) {
+        this.chunkedUploads = chunkedUploads;
+    }
+
+    /**
+     * Set the largest compressed file {@link #putZlibFileOnS3(File, String)} keeps in memory.
+     * Larger files are compressed twice instead.
+     */
+    public void setSpillBufferSize(int spillBufferSize) {
+        this.spillBufferSize = spillBufferSize;
+    }
+
+    /**
+     * Set the compressor used for large files, or <code>null</code> to always compress on a single core.
+     * By default, large files are compressed on all cores of the common fork-join pool.
+     */
+    public void setParallelDeflater(ParallelDeflater parallelDeflater) {
+        this.parallelDeflater = parallelDeflater;
+    }
+
+    /**
+     * Set how long Push API calls wait for a response. S3 uploads are not bounded by it, as their duration
+     * depends on the file size: see {@link #setUploadTimeout(Duration, long)}.
+     */
+    public void setRequestTimeout(Duration requestTimeout) {
+        this.requestTimeout = requestTimeout;
+    }
+
+    /**
+     * Set how long an S3 upload waits for its response: <code>timeout</code>, plus the time to send the body at
+     * <code>minBytesPerSecond</code>. Uploads of unknown length, i.e. chunked, are not bounded.
+     * By default, 30 seconds plus 1 second per 64 KB.
+     */
+    public void setUploadTimeout(Duration timeout, long minBytesPerSecond) {
+        if (minBytesPerSecond <= 0) {
+            throw new IllegalArgumentException("minBytesPerSecond must be positive: " + minBytesPerSecond);
+        }
+        this.uploadTimeout = timeout;
+        this.uploadMinBytesPerSecond = minBytesPerSecond;
+    }
+
+    /**
+     * Set how many times {@link #putArtifactOnS3(ArtifactCache.Artifact)} tries an upload, each time on a new
+     * pre-signed URL. 3 by default.
+     */
+    public void setUploadAttempts(int uploadAttempts) {
+        if (uploadAttempts <= 0) {
+            throw new IllegalArgumentException("uploadAttempts must be positive: " + uploadAttempts);
+        }
+        this.uploadAttempts = uploadAttempts;
+    }
 
-        if (responseCode != 200) {
-            // If the request failed in some way. Check the error stream for information
-            InputStream is = conn.getErrorStream();
-            LOGGER.severe("Error = " + readStream(is));
-            throw new Exception("Unable to upload file to S3");
+    /**
+     * Set the cache that keeps compressed files until their document is committed, so that failed uploads resume
+     * without compressing again, or <code>null</code> to compress as files are uploaded
+     */
+    public void setArtifactCache(ArtifactCache artifactCache) {
+        this.artifactCache = artifactCache;
+    }
+
+    public ArtifactCache getArtifactCache() {
+        return artifactCache;
+    }
+
+    private PushRequest s3PutRequest(String uploadUri, RequestBody body) {
+        PushRequest request = new PushRequest("PUT", URI.create(uploadUri))
+                // Add the required headers
+                .header("Content-Type", "application/octet-stream")
+                .header("x-amz-server-side-encryption", "AES256")
+                .body(body);
+        long length = body.contentLength();
+        if (length >= 0) {
+            request.timeout(uploadTimeout.plusSeconds(length / uploadMinBytesPerSecond));
+        }
+        if (LOGGER.isLoggable(Level.INFO)) {
+            LOGGER.info("=>> PUT file to S3: " + request.getUri());
+        }
+        return request;
+    }
+
+    private Void handleS3Put(PushResponse response) throws Exception {
+        checkResponse(response, 200, "Unable to upload file to S3");
+        return null;
+    }
+
+    /**
+     * @return the number of bytes left in a file inputstream, or -1 for any other stream or with chunked uploads
+     */
+    private long streamLength(InputStream in) throws IOException {
+        if (!chunkedUploads && in instanceof FileInputStream) {
+            FileChannel channel = ((FileInputStream) in).getChannel();
+            return channel.size() - channel.position();
         }
+        return -1;
     }
 
     /**
@@ -191,46 +496,131 @@ public class CoveoPushAPI {
      * @param docId the unique Coveo documentId / URI
      */
     public void putDocumentOnCoveo(String json, String docId) throws Exception {
-        try {
-            // append docId (url-encoded to be safe)
-            URL url = new URL("https://push.cloud.coveo.com/v1/organizations/" + organizationId + "/sources/" + sourceId + "/documents?documentId=" + URLEncoder.encode(docId, "UTF-8"));
-            LOGGER.info("=>> PUT document to Coveo: " + url.toString());
-            HttpsURLConnection conn = (HttpsURLConnection) url.openConnection();
-
-            // Set authorization and content-type headers
-            conn.setRequestProperty("Authorization", "Bearer " + accessToken);
-            conn.setRequestProperty("content-type", "application/json");
-
-            // Set parameters of the HttpURLConnection
-            conn.setReadTimeout(10000);
-            conn.setConnectTimeout(15000);
-            conn.setRequestMethod("PUT");
-            conn.setDoInput(true);
-            conn.setDoOutput(true);
-
-            BufferedOutputStream bos = new BufferedOutputStream(conn.getOutputStream());
-            BufferedInputStream bis = new BufferedInputStream(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
-            int i;
-            // read byte by byte until end of stream
-            while ((i = bis.read()) >= 0) {
-                bos.write(i);
-            }
-            bos.close();
+        execute(PushStage.PUT_DOCUMENT, putDocumentRequest(json, docId, -1), this::handlePutDocument);
+    }
+
+    /**
+     * PUT the provided JSON Document on Coveo, with an explicit orderingId. The Push API ignores a document
+     * whose orderingId is lower than the one it already has for that documentId.
+     *
+     * @param json the JSON Document
+     * @param docId the unique Coveo documentId / URI
+     * @param orderingId e.g. the time the document content was read, in milliseconds since the epoch
+     */
+    public void putDocumentOnCoveo(String json, String docId, long orderingId) throws Exception {
+        execute(PushStage.PUT_DOCUMENT, putDocumentRequest(json, docId, orderingId), this::handlePutDocument);
+    }
+
+    /**
+     * Asynchronous {@link #putDocumentOnCoveo(String, String)}
+     */
+    public CompletableFuture<Void> putDocumentOnCoveoAsync(String json, String docId) {
+        return executeAsync(PushStage.PUT_DOCUMENT, () -> putDocumentRequest(json, docId, -1), this::handlePutDocument);
+    }
+
+    /**
+     * Asynchronous {@link #putDocumentOnCoveo(String, String, long)}
+     */
+    public CompletableFuture<Void> putDocumentOnCoveoAsync(String json, String docId, long orderingId) {
+        return executeAsync(PushStage.PUT_DOCUMENT, () -> putDocumentRequest(json, docId, orderingId), this::handlePutDocument);
+    }
+
+    /**
+     * PUT a JSON Document on Coveo, encoded by a {@link DocumentEncoder} straight into the request body. The body is
+     * buffered: the document is encoded once into memory, without a String of it, and sent from there, also on a
+     * retry.
+     *
+     * @param document writes the fields of the JSON Document
+     * @param docId the unique Coveo documentId / URI
+     * @param orderingId the orderingId of the document, or -1 to let the Push API use the push time
+     */
+    public void putDocumentOnCoveo(DocumentEncoder.Content document, String docId, long orderingId) throws Exception {
+        execute(PushStage.PUT_DOCUMENT, putDocumentRequest(document, docId, orderingId), this::handlePutDocument);
+    }
+
+    /**
+     * Asynchronous {@link #putDocumentOnCoveo(DocumentEncoder.Content, String, long)}
+     */
+    public CompletableFuture<Void> putDocumentOnCoveoAsync(DocumentEncoder.Content document, String docId, long orderingId) {
+        return executeAsync(PushStage.PUT_DOCUMENT, () -> putDocumentRequest(document, docId, orderingId), this::handlePutDocument);
+    }
 
-            int responseCode = conn.getResponseCode();
-            LOGGER.info("<<= Response Code = " + responseCode + " " + conn.getResponseMessage());
+    /**
+     * PUT a JSON Document on Coveo with the content of a file embedded in it, compressed and base64-encoded as its
+     * <code>CompressedBinaryData</code>. This takes one request, instead of the three of the S3 file container, and
+     * suits small files: the Push API limits the size of a document request, and the document is held in memory, as
+     * with {@link #putDocumentOnCoveo(DocumentEncoder.Content, String, long)}.
+     *
+     * @param fields writes the fields of the JSON Document, but <code>compressionType</code> and
+     *               <code>CompressedBinaryData</code>, which are written after them
+     * @param docId the unique Coveo documentId / URI
+     * @param orderingId the orderingId of the document, or -1 to let the Push API use the push time
+     * @param file the content of the document
+     * @param choice how to compress the content
+     */
+    public void putDocumentWithDataOnCoveo(DocumentEncoder.Content fields, String docId, long orderingId, File file,
+                                           CompressionSelector.Choice choice) throws Exception {
+        DocumentEncoder.Content document = encoder -> {
+            fields.encode(encoder);
+            binaryData(encoder, file, choice);
+        };
+        execute(PushStage.PUT_DOCUMENT, putDocumentRequest(document, docId, orderingId), this::handlePutDocument);
+    }
 
-            if (responseCode != 202) {
-                // If the request failed in some way. Check the error stream for information
-                InputStream is = conn.getErrorStream();
-                LOGGER.severe("Error = " + readStream(is));
-                throw new Exception("Unable to upload JSON Document to Coveo");
+    /**
+     * Write the content of a small file into its document, compressed as chosen
+     */
+    private void binaryData(DocumentEncoder document, File file, CompressionSelector.Choice choice) throws IOException {
+        if (choice.type == CompressionType.UNCOMPRESSED) {
+            try (InputStream in = new FileInputStream(file)) {
+                document.binaryData(in, choice.type);
             }
+            compressionStats.record(choice, file.length(), file.length(), 0);
+            return;
+        }
+        try (MeteredInputStream in = new MeteredInputStream(choice.type.open(file, choice.level, null))) {
+            document.binaryData(in, choice.type);
+            compressionStats.record(choice, file.length(), in.getCount(), in.getCpuNanos());
+            compressionCompleted(file.length(), in.getCount(), in.getWallNanos());
+        }
+    }
 
-        } catch (Exception e) {
-            e.printStackTrace();
+    private PushRequest putDocumentRequest(String json, String docId, long orderingId) throws Exception {
+        // send the encoded JSON as is, with a known length
+        return documentRequest(docId, orderingId, RequestBody.ofBytes(json.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private PushRequest putDocumentRequest(DocumentEncoder.Content document, String docId, long orderingId) throws Exception {
+        return documentRequest(docId, orderingId, RequestBody.ofWriter(out -> DocumentEncoder.encode(document, out)));
+    }
+
+    private PushRequest documentRequest(String docId, long orderingId, RequestBody body) throws Exception {
+        // append docId (url-encoded to be safe)
+        PushRequest request = apiRequest("PUT", sourceUrl() + "/documents?documentId=" + URLEncoder.encode(docId, "UTF-8")
+                + (orderingId >= 0 ? "&orderingId=" + orderingId : ""))
+                .header("content-type", "application/json")
+                .body(body);
+        if (LOGGER.isLoggable(Level.INFO)) {
+            LOGGER.info("=>> PUT document to Coveo: " + request.getUri());
+        }
+        // the start of the document only, read back from the body if FINE is logged
+        LOGGER.fine(() -> "=>> JSON Document: " + preview(body));
+        return request;
+    }
+
+    private static String preview(RequestBody body) {
+        byte[] head = new byte[DocumentEncoder.PREVIEW_LENGTH];
+        try (InputStream in = body.open()) {
+            int length = IOUtils.read(in, head);
+            return DocumentEncoder.preview(head, length, body.contentLength());
+        } catch (IOException e) {
+            return e.toString();
         }
+    }
 
+    private Void handlePutDocument(PushResponse response) throws Exception {
+        checkResponse(response, 202, "Unable to upload JSON Document to Coveo");
+        return null;
     }
 
     /**
@@ -238,37 +628,265 @@ public class CoveoPushAPI {
      * @param docId the Coveo documentId / URI
      */
     public void deleteDocumentOnCoveo(String docId) throws Exception {
-        try {
-            // append docId (url-encoded to be safe)
-            URL url = new URL("https://push.cloud.coveo.com/v1/organizations/" + organizationId + "/sources/" + sourceId + "/documents?documentId=" + URLEncoder.encode(docId, "UTF-8"));
-            LOGGER.info("=>> DELETE document to Coveo: " + url.toString());
-            HttpsURLConnection conn = (HttpsURLConnection) url.openConnection();
-
-            // Set authorization and content-type headers
-            conn.setRequestProperty("Authorization", "Bearer " + accessToken);
-            conn.setRequestProperty("content-type", "application/json");
-
-            // Set parameters of the HttpURLConnection
-            conn.setReadTimeout(10000);
-            conn.setConnectTimeout(15000);
-            conn.setRequestMethod("DELETE");
-            conn.setDoInput(true);
-            conn.setDoOutput(true);
-
-            int responseCode = conn.getResponseCode();
-            LOGGER.info("<<= Response Code = " + responseCode + " " + conn.getResponseMessage());
-
-            if (responseCode != 202) {
-                // If the request failed in some way. Check the error stream for information
-                InputStream is = conn.getErrorStream();
-                LOGGER.severe("Error = " + readStream(is));
-                throw new Exception("Unable to delete document on Coveo");
+        execute(PushStage.DELETE_DOCUMENT, deleteDocumentRequest(docId), this::handleDeleteDocument);
+    }
+
+    /**
+     * Asynchronous {@link #deleteDocumentOnCoveo(String)}
+     */
+    public CompletableFuture<Void> deleteDocumentOnCoveoAsync(String docId) {
+        return executeAsync(PushStage.DELETE_DOCUMENT, () -> deleteDocumentRequest(docId), this::handleDeleteDocument);
+    }
+
+    private PushRequest deleteDocumentRequest(String docId) throws Exception {
+        // append docId (url-encoded to be safe)
+        PushRequest request = apiRequest("DELETE", sourceUrl() + "/documents?documentId=" + URLEncoder.encode(docId, "UTF-8"))
+                .header("content-type", "application/json");
+        if (LOGGER.isLoggable(Level.INFO)) {
+            LOGGER.info("=>> DELETE document to Coveo: " + request.getUri());
+        }
+        return request;
+    }
+
+    private Void handleDeleteDocument(PushResponse response) throws Exception {
+        checkResponse(response, 202, "Unable to delete document on Coveo");
+        return null;
+    }
+
+    /**
+     * DELETE many documentIds / URIs on Coveo, streaming them into batch files uploaded through the S3 file
+     * container instead of sending one DELETE per document.
+     *
+     * @param docIds the Coveo documentIds / URIs; only one batch is held at a time, so this may be very long
+     * @return the number of documents deleted
+     */
+    public long deleteDocumentsOnCoveo(Iterator<String> docIds) throws Exception {
+        try (BatchDocumentProducer producer = new BatchDocumentProducer(this, BatchDocumentProducer.DEFAULT_MAX_BATCH_BYTES,
+                BatchDocumentProducer.DEFAULT_MAX_BATCH_DOCUMENTS * 10, 0)) {
+            while (docIds.hasNext()) {
+                producer.delete(docIds.next());
             }
+            producer.flush();
+            return producer.getDeletesSent();
+        }
+    }
+
+    /**
+     * DELETE the documentIds / URIs listed in a file, one per line. Blank lines are skipped.
+     *
+     * @param docIdFile a UTF-8 text file of Coveo documentIds / URIs
+     * @return the number of documents deleted
+     */
+    public long deleteDocumentsOnCoveo(File docIdFile) throws Exception {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(docIdFile), StandardCharsets.UTF_8))) {
+            return deleteDocumentsOnCoveo(reader.lines().map(String::trim).filter(line -> !line.isEmpty()).iterator());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * DELETE every document of the source whose orderingId is lower than <code>orderingId</code>.
+     * <p>
+     * Documents pushed without an explicit orderingId get the time of the push, in milliseconds since the epoch.
+     * So to drop stale documents after a full rebuild, remember <code>System.currentTimeMillis()</code> before
+     * pushing, push every document, then delete everything older than that time.
+     *
+     * @param orderingId
+     */
+    public void deleteOlderThanOnCoveo(long orderingId) throws Exception {
+        execute(PushStage.DELETE_OLDER_THAN, deleteOlderThanRequest(orderingId), this::handleDeleteOlderThan);
+    }
+
+    /**
+     * Asynchronous {@link #deleteOlderThanOnCoveo(long)}
+     */
+    public CompletableFuture<Void> deleteOlderThanOnCoveoAsync(long orderingId) {
+        return executeAsync(PushStage.DELETE_OLDER_THAN, () -> deleteOlderThanRequest(orderingId), this::handleDeleteOlderThan);
+    }
+
+    private PushRequest deleteOlderThanRequest(long orderingId) {
+        PushRequest request = apiRequest("DELETE", sourceUrl() + "/documents/olderthan?orderingId=" + orderingId);
+        if (LOGGER.isLoggable(Level.INFO)) {
+            LOGGER.info("=>> DELETE documents older than " + orderingId + " on Coveo: " + request.getUri());
+        }
+        return request;
+    }
+
+    private Void handleDeleteOlderThan(PushResponse response) throws Exception {
+        checkResponse(response, 202, "Unable to delete old documents on Coveo");
+        return null;
+    }
+
+    /**
+     * PUT a batch of documents on Coveo. The batch JSON file must already be uploaded to S3
+     * (see {@link #getS3File()} and {@link #putFileOnS3(InputStream, String)}).
+     *
+     * @param fileId the fileId returned by {@link #getS3File()} for the uploaded batch file
+     */
+    public void pushBatchOnCoveo(String fileId) throws Exception {
+        execute(PushStage.PUSH_BATCH, pushBatchRequest(fileId), this::handlePushBatch);
+    }
+
+    /**
+     * Asynchronous {@link #pushBatchOnCoveo(String)}
+     */
+    public CompletableFuture<Void> pushBatchOnCoveoAsync(String fileId) {
+        return executeAsync(PushStage.PUSH_BATCH, () -> pushBatchRequest(fileId), this::handlePushBatch);
+    }
+
+    private PushRequest pushBatchRequest(String fileId) throws Exception {
+        PushRequest request = apiRequest("PUT", sourceUrl() + "/documents/batch?fileId=" + URLEncoder.encode(fileId, "UTF-8"))
+                .header("content-type", "application/json");
+        if (LOGGER.isLoggable(Level.INFO)) {
+            LOGGER.info("=>> PUT document batch to Coveo: " + request.getUri());
+        }
+        return request;
+    }
+
+    private Void handlePushBatch(PushResponse response) throws Exception {
+        checkResponse(response, 202, "Unable to push document batch to Coveo");
+        return null;
+    }
+
+    /**
+     * @return the governor that retries and rate-limits the requests of this client
+     */
+    public RequestGovernor getGovernor() {
+        return governor;
+    }
+
+    /**
+     * @return the per-stage latency, throughput and response codes of this client
+     */
+    public PushMetrics getMetrics() {
+        return metrics;
+    }
 
+    /**
+     * Expose the {@link #getMetrics()} of this client as JMX MXBeans, named after its sourceId, along with the
+     * shared {@link BufferPool}
+     */
+    public void registerMetricsMBeans() throws Exception {
+        metrics.registerMBeans(sourceId);
+        BufferPool.getDefault().registerMBean();
+    }
+
+    /**
+     * Have a listener receive the measurements of this client, in addition to {@link #getMetrics()}
+     */
+    public synchronized void addMetricsListener(PushMetricsListener listener) {
+        PushMetricsListener[] listeners = Arrays.copyOf(metricsListeners, metricsListeners.length + 1);
+        listeners[listeners.length - 1] = listener;
+        metricsListeners = listeners;
+    }
+
+    public synchronized void removeMetricsListener(PushMetricsListener listener) {
+        List<PushMetricsListener> listeners = new ArrayList<>(Arrays.asList(metricsListeners));
+        listeners.remove(listener);
+        metricsListeners = listeners.toArray(new PushMetricsListener[0]);
+    }
+
+    /**
+     * @return the Push API root this client sends its requests to
+     */
+    public String getBaseUrl() {
+        return baseUrl;
+    }
+
+    private String sourceUrl() {
+        return baseUrl + "/v1/organizations/" + organizationId + "/sources/" + sourceId;
+    }
+
+    /**
+     * Build a Push API request, with the Authorization header for the accessToken
+     */
+    private PushRequest apiRequest(String method, String url) {
+        return new PushRequest(method, URI.create(url))
+                .header("Authorization", "Bearer " + accessToken)
+                .timeout(requestTimeout);
+    }
+
+    private void checkResponse(PushResponse response, int expectedCode, String failure) throws Exception {
+        int responseCode = response.getStatusCode();
+        if (LOGGER.isLoggable(Level.INFO)) {
+            LOGGER.info("<<= Response Code = " + responseCode);
+        }
+
+        if (responseCode != expectedCode) {
+            // If the request failed in some way. Check the response body for information
+            LOGGER.severe("Error = " + response.getBody());
+            throw new PushApiException(failure, responseCode);
+        }
+    }
+
+    /**
+     * Builds a request; may fail before anything is sent
+     */
+    private interface RequestFactory {
+        PushRequest create() throws Exception;
+    }
+
+    /**
+     * Turns a response into the result of an operation, or throws if the operation failed
+     */
+    private interface ResponseHandler<T> {
+        T handle(PushResponse response) throws Exception;
+    }
+
+    private <T> T execute(PushStage stage, PushRequest request, ResponseHandler<T> handler) throws Exception {
+        PushMetricsListener[] listeners = metricsListeners;
+        for (PushMetricsListener listener : listeners) {
+            listener.requestStarted(stage);
+        }
+        long start = System.nanoTime();
+        PushResponse response = null;
+        try {
+            response = governor.send(transport, request);
+        } finally {
+            requestCompleted(listeners, stage, request, response, System.nanoTime() - start);
+        }
+        return handler.handle(response);
+    }
+
+    private <T> CompletableFuture<T> executeAsync(PushStage stage, RequestFactory factory, ResponseHandler<T> handler) {
+        PushRequest request;
+        try {
+            request = factory.create();
         } catch (Exception e) {
-            e.printStackTrace();
+            return CompletableFuture.failedFuture(e);
         }
+        PushMetricsListener[] listeners = metricsListeners;
+        for (PushMetricsListener listener : listeners) {
+            listener.requestStarted(stage);
+        }
+        long start = System.nanoTime();
+        return governor.sendAsync(transport, request).whenComplete((response, failure) ->
+                requestCompleted(listeners, stage, request, response, System.nanoTime() - start)
+        ).thenApply(response -> {
+            try {
+                return handler.handle(response);
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    private static void requestCompleted(PushMetricsListener[] listeners, PushStage stage, PushRequest request,
+                                         PushResponse response, long nanos) {
+        RequestBody body = request.getBody();
+        long sent = body == null ? 0 : Math.max(0, body.contentLength());
+        long received = response == null ? 0 : response.getBodyLength();
+        int statusCode = response == null ? -1 : response.getStatusCode();
+        for (PushMetricsListener listener : listeners) {
+            listener.requestCompleted(stage, statusCode, nanos, sent, received);
+        }
+    }
 
+    private void compressionCompleted(long originalBytes, long compressedBytes, long nanos) {
+        for (PushMetricsListener listener : metricsListeners) {
+            listener.compressionCompleted(originalBytes, compressedBytes, nanos);
+        }
     }
 
 
@@ -280,31 +898,108 @@ public class CoveoPushAPI {
      * @throws Exception
      */
     private void doCopy(InputStream is, OutputStream os) throws Exception {
-        byte[] bytes = new byte[1024];
-        int length;
-        while ((length = is.read(bytes)) >= 0) {
-            os.write(bytes, 0, length);
+        try {
+            StreamTransfer.copy(is, os);
+        } finally {
+            os.close();
+            is.close();
         }
-        os.close();
-        is.close();
     }
 
     /**
-     * Read inputstream into a String
-     * @param stream
-     * @return
-     * @throws Exception
+     * InputStream over a compressing stream, that counts the bytes read through it and the CPU time spent
+     * producing them, on the reading thread and on the pool threads of a {@link ParallelDeflater}
+     */
+    private static class MeteredInputStream extends FilterInputStream {
+        private long count;
+        private long cpuNanos;
+        private long wallNanos;
+
+        MeteredInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            long wallStart = System.nanoTime();
+            long start = CompressionStats.currentThreadCpuNanos();
+            int b = in.read();
+            cpuNanos += CompressionStats.currentThreadCpuNanos() - start;
+            wallNanos += System.nanoTime() - wallStart;
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            long wallStart = System.nanoTime();
+            long start = CompressionStats.currentThreadCpuNanos();
+            int n = in.read(b, off, len);
+            cpuNanos += CompressionStats.currentThreadCpuNanos() - start;
+            wallNanos += System.nanoTime() - wallStart;
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        long getCpuNanos() {
+            return cpuNanos + ParallelDeflater.blockCpuNanos(in);
+        }
+
+        /**
+         * @return the wall-clock time spent in reads, i.e. waiting for the compressed content
+         */
+        long getWallNanos() {
+            return wallNanos;
+        }
+    }
+
+    /**
+     * OutputStream that keeps up to <code>limit</code> bytes in memory, and only counts the bytes past it
      */
-    private String readStream(InputStream stream) throws Exception {
-        StringBuilder builder = new StringBuilder();
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(stream))) {
-            String line;
-            while ((line = in.readLine()) != null) {
-                builder.append(line).append("\n"); // + "\r\n"(no need, json has no line breaks!)
+    private static class SpillBuffer extends OutputStream {
+        private final int limit;
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private long count;
+
+        SpillBuffer(int limit) {
+            this.limit = limit;
+        }
+
+        @Override
+        public void write(int b) {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            if (count + len <= limit) {
+                buffer.write(b, off, len);
+            } else if (buffer.size() > 0) {
+                // overflowed: drop what was kept, from now on only count
+                buffer.reset();
             }
-            in.close();
+            count += len;
+        }
+
+        boolean isOverflowed() {
+            return count > limit;
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        byte[] toByteArray() {
+            return buffer.toByteArray();
         }
-        return builder.toString();
     }
 
 }
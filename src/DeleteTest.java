@@ -23,6 +23,12 @@ public class DeleteTest {
      * Usage: DeleteTest -o coveochadjohnson01 -s coveochadjohnson01-x4vdgehj6st4bvt6ur3wmx2poi
      *              -a __________-____-____-____-____________ -d http://www.test.com/somefile.pdf
      *
+     * Or, to delete every documentId listed in a file (one per line) in batches:
+     *        DeleteTest -o ... -s ... -a ... -f "/Users/cjohnson/stale-uris.txt"
+     *
+     * Or, to delete every document with an orderingId lower than a given one:
+     *        DeleteTest -o ... -s ... -a ... -t 1500000000000
+     *
      * @param args
      */
     public static void main(String[] args) {
@@ -31,6 +37,8 @@ public class DeleteTest {
         String sourceId = null;
         String accessToken = null;
         String docId = null;
+        String docIdFile = null;
+        String olderThan = null;
 
         // create the command line parser
         CommandLineParser parser = new DefaultParser();
@@ -49,10 +57,21 @@ public class DeleteTest {
                 .longOpt("access-token")
                 .desc("Coveo Source Access Token")
                 .hasArg().required().build());
-        options.addOption(Option.builder("d")
+        OptionGroup target = new OptionGroup();
+        target.addOption(Option.builder("d")
                 .longOpt("doc-id")
                 .desc("Coveo Document ID (URI)")
-                .hasArg().required().build());
+                .hasArg().build());
+        target.addOption(Option.builder("f")
+                .longOpt("doc-id-file")
+                .desc("File listing the Coveo Document IDs (URI) to delete, one per line")
+                .hasArg().build());
+        target.addOption(Option.builder("t")
+                .longOpt("older-than")
+                .desc("Delete all documents whose ordering ID is lower than this one")
+                .hasArg().build());
+        target.setRequired(true);
+        options.addOptionGroup(target);
 
         try {
             // parse the command line arguments
@@ -62,6 +81,8 @@ public class DeleteTest {
             sourceId = line.getOptionValue("s");
             accessToken = line.getOptionValue("a");
             docId = line.getOptionValue("d");
+            docIdFile = line.getOptionValue("f");
+            olderThan = line.getOptionValue("t");
 
         } catch (ParseException exp) {
             HelpFormatter formatter = new HelpFormatter();
@@ -72,19 +93,24 @@ public class DeleteTest {
         // Construct CoveoPushAPI object
         CoveoPushAPI coveoPushAPI = new CoveoPushAPI(organizationId, sourceId, accessToken);
 
-        try {
-            // *** Set Source Status to REBUILD ***
-            coveoPushAPI.setSourceStatus("REBUILD");
-
-            // *** PUT the JSON Document on Coveo
-            coveoPushAPI.deleteDocumentOnCoveo(docId);
-
-            // *** Set source status back to IDLE
-            coveoPushAPI.setSourceStatus("IDLE");
-
+        // *** Set Source Status to REBUILD for the time of the job, then back to IDLE ***
+        try (SourceStatusSession.Job job = coveoPushAPI.getStatusSession().begin("REBUILD")) {
+            LOGGER.info("Source status: " + job.getStatus());
+
+            if (docId != null) {
+                // *** DELETE the document on Coveo
+                coveoPushAPI.deleteDocumentOnCoveo(docId);
+            } else if (docIdFile != null) {
+                // *** DELETE all the listed documents on Coveo, in batches
+                long deleted = coveoPushAPI.deleteDocumentsOnCoveo(new File(docIdFile));
+                LOGGER.info("Deleted " + deleted + " documents");
+            } else {
+                // *** DELETE all documents older than the ordering ID on Coveo
+                coveoPushAPI.deleteOlderThanOnCoveo(Long.parseLong(olderThan));
+            }
 
         } catch (Exception e) {
-            LOGGER.log(Level.SEVERE, "Failed to push file", e);
+            LOGGER.log(Level.SEVERE, "Failed to delete documents", e);
         }
 
     }
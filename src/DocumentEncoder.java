@@ -0,0 +1,435 @@
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Writes a JSON Document as UTF-8 straight into an output stream, field by field: no String, StringWriter or
+ * intermediate byte array of the document is ever built. Wrap the stream in a compressor to compress on the fly.
+ * <pre>
+ * DocumentEncoder.encode(document -&gt; document
+ *         .field("title", "Report")
+ *         .metadata(fields)
+ *         .permissions(false, allowed, denied)
+ *         .fileReference(fileId, CompressionType.ZLIB), out);
+ * </pre>
+ * Fields are written in the order they are given, and it is up to the caller not to repeat one.
+ */
+public class DocumentEncoder {
+
+    /**
+     * Writes the fields of a document
+     */
+    public interface Content {
+        void encode(DocumentEncoder document) throws IOException;
+    }
+
+    /**
+     * An identity allowed or denied access to a document
+     */
+    public static class Identity {
+        final String identity;
+        final String identityType;
+        final String securityProvider;
+
+        /**
+         * @param identity     the name of the user or group
+         * @param identityType User, Group, VirtualGroup or Unknown
+         */
+        public Identity(String identity, String identityType) {
+            this(identity, identityType, null);
+        }
+
+        /**
+         * @param securityProvider the security provider of the identity, or null for the source's
+         */
+        public Identity(String identity, String identityType, String securityProvider) {
+            this.identity = identity;
+            this.identityType = identityType;
+            this.securityProvider = securityProvider;
+        }
+    }
+
+    /** Number of bytes of a document that are logged */
+    public static final int PREVIEW_LENGTH = 512;
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private final OutputStream out;
+    private final byte[] buffer;
+    private int position;
+    private boolean first = true;
+
+    private DocumentEncoder(OutputStream out, byte[] buffer) {
+        this.out = out;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Write a document into a stream, which is flushed but not closed
+     */
+    public static void encode(Content content, OutputStream out) throws IOException {
+        BufferPool pool = BufferPool.getDefault();
+        byte[] buffer = pool.acquireBuffer();
+        try {
+            DocumentEncoder document = new DocumentEncoder(out, buffer);
+            document.write('{');
+            content.encode(document);
+            document.write('}');
+            document.flush();
+        } finally {
+            pool.releaseBuffer(buffer);
+        }
+    }
+
+    /**
+     * @return a document as a String, for the APIs that take one
+     */
+    public static String toJson(Content content) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encode(content, out);
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param head        the first bytes of an encoded document, at most {@link #PREVIEW_LENGTH}
+     * @param totalLength the length of the whole document
+     * @return the start of the document, for logging, followed by its length if it is cut
+     */
+    public static String preview(byte[] head, int length, long totalLength) {
+        String text = new String(head, 0, length, StandardCharsets.UTF_8);
+        return totalLength > length ? text + "... (" + totalLength + " bytes)" : text;
+    }
+
+    public DocumentEncoder field(String name, String value) throws IOException {
+        key(name);
+        if (value == null) {
+            writeAscii("null");
+        } else {
+            string(value);
+        }
+        return this;
+    }
+
+    public DocumentEncoder field(String name, long value) throws IOException {
+        key(name);
+        writeAscii(Long.toString(value));
+        return this;
+    }
+
+    public DocumentEncoder field(String name, double value) throws IOException {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new IllegalArgumentException("Not a JSON number, " + name + ": " + value);
+        }
+        key(name);
+        writeAscii(Double.toString(value));
+        return this;
+    }
+
+    public DocumentEncoder field(String name, boolean value) throws IOException {
+        key(name);
+        writeAscii(value ? "true" : "false");
+        return this;
+    }
+
+    /**
+     * A field of any JSON value: null, String, Number, Boolean, Map, Collection, array, JSONObject or JSONArray
+     */
+    public DocumentEncoder field(String name, Object value) throws IOException {
+        key(name);
+        value(value);
+        return this;
+    }
+
+    /**
+     * The text content of the document, its <code>data</code> field
+     */
+    public DocumentEncoder data(String text) throws IOException {
+        return field("data", text);
+    }
+
+    /**
+     * One field per entry
+     */
+    public DocumentEncoder metadata(Map<String, ?> fields) throws IOException {
+        for (Map.Entry<String, ?> entry : fields.entrySet()) {
+            field(entry.getKey(), entry.getValue());
+        }
+        return this;
+    }
+
+    /**
+     * One field per key of a JSON object
+     */
+    public DocumentEncoder metadata(JSONObject fields) throws IOException {
+        Iterator<?> keys = fields.keys();
+        while (keys.hasNext()) {
+            String key = (String) keys.next();
+            field(key, fields.opt(key));
+        }
+        return this;
+    }
+
+    /**
+     * The <code>permissions</code> of the document, a single permission set
+     *
+     * @param allowAnonymous true to let everyone see the document, but the denied identities
+     * @param allowed        identities allowed to see the document
+     * @param denied         identities denied to see it, which takes precedence over allowed
+     */
+    public DocumentEncoder permissions(boolean allowAnonymous, Collection<Identity> allowed,
+                                       Collection<Identity> denied) throws IOException {
+        key("permissions");
+        writeAscii("[{\"allowAnonymous\":");
+        writeAscii(allowAnonymous ? "true" : "false");
+        writeAscii(",\"allowedPermissions\":");
+        identities(allowed);
+        writeAscii(",\"deniedPermissions\":");
+        identities(denied);
+        writeAscii("}]");
+        return this;
+    }
+
+    /**
+     * Reference the content of the document, uploaded to the S3 file container
+     */
+    public DocumentEncoder fileReference(String fileId, CompressionType compressionType) throws IOException {
+        field("CompressedBinaryDataFileId", fileId);
+        return field("compressionType", compressionType.name());
+    }
+
+    /**
+     * Embed the content of the document, base64-encoded as it is read from a stream, which is not closed
+     *
+     * @param compressed      the content, e.g. from {@link CompressionType#open}
+     * @param compressionType how the content is compressed
+     */
+    public DocumentEncoder binaryData(InputStream compressed, CompressionType compressionType) throws IOException {
+        field("compressionType", compressionType.name());
+        key("CompressedBinaryData");
+        write('"');
+        try (OutputStream base64 = Base64.getEncoder().wrap(sink())) {
+            StreamTransfer.copy(compressed, base64);
+        }
+        write('"');
+        return this;
+    }
+
+    private void identities(Collection<Identity> identities) throws IOException {
+        write('[');
+        boolean firstIdentity = true;
+        for (Identity identity : identities) {
+            if (!firstIdentity) {
+                write(',');
+            }
+            firstIdentity = false;
+            writeAscii("{\"identity\":");
+            string(identity.identity);
+            writeAscii(",\"identityType\":");
+            string(identity.identityType);
+            if (identity.securityProvider != null) {
+                writeAscii(",\"securityProvider\":");
+                string(identity.securityProvider);
+            }
+            write('}');
+        }
+        write(']');
+    }
+
+    private void key(String name) throws IOException {
+        if (!first) {
+            write(',');
+        }
+        first = false;
+        string(name);
+        write(':');
+    }
+
+    private void value(Object value) throws IOException {
+        if (value == null || value == JSONObject.NULL) {
+            writeAscii("null");
+        } else if (value instanceof String || value instanceof Character) {
+            string(value.toString());
+        } else if (value instanceof Double || value instanceof Float) {
+            double d = ((Number) value).doubleValue();
+            if (Double.isNaN(d) || Double.isInfinite(d)) {
+                throw new IllegalArgumentException("Not a JSON number: " + value);
+            }
+            writeAscii(value.toString());
+        } else if (value instanceof Number || value instanceof Boolean) {
+            writeAscii(value.toString());
+        } else if (value instanceof JSONObject || value instanceof JSONArray) {
+            // already valid JSON
+            string(value.toString(), false);
+        } else if (value instanceof Map) {
+            write('{');
+            boolean firstEntry = true;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                if (!firstEntry) {
+                    write(',');
+                }
+                firstEntry = false;
+                string(String.valueOf(entry.getKey()));
+                write(':');
+                value(entry.getValue());
+            }
+            write('}');
+        } else if (value instanceof Collection) {
+            write('[');
+            boolean firstElement = true;
+            for (Object element : (Collection<?>) value) {
+                if (!firstElement) {
+                    write(',');
+                }
+                firstElement = false;
+                value(element);
+            }
+            write(']');
+        } else if (value.getClass().isArray()) {
+            write('[');
+            for (int i = 0; i < Array.getLength(value); i++) {
+                if (i > 0) {
+                    write(',');
+                }
+                value(Array.get(value, i));
+            }
+            write(']');
+        } else {
+            throw new IllegalArgumentException("Not a JSON value: " + value.getClass().getName());
+        }
+    }
+
+    private void string(String s) throws IOException {
+        write('"');
+        string(s, true);
+        write('"');
+    }
+
+    /**
+     * Write the UTF-8 encoding of a string, escaped for a JSON string if <code>escape</code>
+     */
+    private void string(String s, boolean escape) throws IOException {
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                if (!escape || (c >= 0x20 && c != '"' && c != '\\')) {
+                    write(c);
+                } else {
+                    escape(c);
+                }
+            } else if (c < 0x800) {
+                write(0xc0 | (c >> 6));
+                write(0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                write(0xf0 | (cp >> 18));
+                write(0x80 | ((cp >> 12) & 0x3f));
+                write(0x80 | ((cp >> 6) & 0x3f));
+                write(0x80 | (cp & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                // unpaired surrogate, replaced as String.getBytes does
+                write('?');
+            } else {
+                write(0xe0 | (c >> 12));
+                write(0x80 | ((c >> 6) & 0x3f));
+                write(0x80 | (c & 0x3f));
+            }
+        }
+    }
+
+    private void escape(char c) throws IOException {
+        write('\\');
+        switch (c) {
+            case '"':
+            case '\\':
+                write(c);
+                break;
+            case '\n':
+                write('n');
+                break;
+            case '\r':
+                write('r');
+                break;
+            case '\t':
+                write('t');
+                break;
+            case '\b':
+                write('b');
+                break;
+            case '\f':
+                write('f');
+                break;
+            default:
+                write('u');
+                write('0');
+                write('0');
+                write(HEX[c >> 4]);
+                write(HEX[c & 0xf]);
+        }
+    }
+
+    private void writeAscii(String s) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            write(s.charAt(i));
+        }
+    }
+
+    private void write(int b) throws IOException {
+        if (position == buffer.length) {
+            drain();
+        }
+        buffer[position++] = (byte) b;
+    }
+
+    private void write(byte[] b, int off, int len) throws IOException {
+        if (len > buffer.length - position) {
+            drain();
+            if (len > buffer.length) {
+                out.write(b, off, len);
+                return;
+            }
+        }
+        System.arraycopy(b, off, buffer, position, len);
+        position += len;
+    }
+
+    private void drain() throws IOException {
+        if (position > 0) {
+            out.write(buffer, 0, position);
+            position = 0;
+        }
+    }
+
+    private void flush() throws IOException {
+        drain();
+        out.flush();
+    }
+
+    /**
+     * @return a stream writing into the document buffer, that closing does not close
+     */
+    private OutputStream sink() {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                DocumentEncoder.this.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                DocumentEncoder.this.write(b, off, len);
+            }
+        };
+    }
+
+}
@@ -0,0 +1,163 @@
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.lang.StringUtils;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.TimeZone;
+
+/**
+ * Pushes a file as a Coveo document, the way {@link UploadLargeFileTest} does: the file is compressed into the S3
+ * file container as chosen by a {@link CompressionSelector}, then a JSON Document referencing it is PUT on the source.
+ * Files smaller than the inline threshold are embedded in their JSON Document instead, in a single request.
+ * With an {@link ArtifactCache} set on the client, the compressed file is kept until its document is committed, so
+ * that pushing the file again after a failure does not compress it again.
+ * <p>
+ * Instances are thread-safe, and may push several files at once.
+ */
+public class FileDocumentPusher {
+
+    public static final long DEFAULT_INLINE_THRESHOLD = 1024 * 1024;
+    // base64 grows the content by a third, and the Push API accepts documents of up to 5 MB
+    public static final long MAX_INLINE_THRESHOLD = 3 * 1024 * 1024;
+
+    // written by the pusher itself, a second one would make the document invalid
+    private static final Set<String> DATA_FIELDS = new HashSet<>(Arrays.asList(
+            "CompressedBinaryDataFileId", "CompressedBinaryData", "compressionType"));
+
+    private final CoveoPushAPI coveoPushAPI;
+    private final CompressionSelector selector;
+    private final long inlineThreshold;
+
+    public FileDocumentPusher(CoveoPushAPI coveoPushAPI) {
+        this(coveoPushAPI, new CompressionSelector(), DEFAULT_INLINE_THRESHOLD);
+    }
+
+    /**
+     * @param selector        chooses how each file is compressed
+     * @param inlineThreshold files smaller than this are embedded in their JSON Document rather than uploaded to
+     *                        S3; 0 to always use S3
+     */
+    public FileDocumentPusher(CoveoPushAPI coveoPushAPI, CompressionSelector selector, long inlineThreshold) {
+        if (inlineThreshold < 0 || inlineThreshold > MAX_INLINE_THRESHOLD) {
+            throw new IllegalArgumentException("Inline threshold must be between 0 and " + MAX_INLINE_THRESHOLD + ": " + inlineThreshold);
+        }
+        this.coveoPushAPI = coveoPushAPI;
+        this.selector = selector;
+        this.inlineThreshold = inlineThreshold;
+    }
+
+    /**
+     * Upload a file and PUT its JSON Document on Coveo
+     *
+     * @param file       the file to push
+     * @param docId      the unique Coveo documentId / URI
+     * @param orderingId the orderingId of the document, or -1 to let the Push API use the push time
+     */
+    public void push(File file, String docId, long orderingId) throws Exception {
+        CompressionSelector.Choice choice = selector.choose(file);
+        if (file.length() < inlineThreshold) {
+            // *** PUT the JSON Document on Coveo, with the compressed file in it
+            coveoPushAPI.putDocumentWithDataOnCoveo(document -> encode(document, file, null, null), docId, orderingId,
+                    file, choice);
+            return;
+        }
+
+        ArtifactCache cache = coveoPushAPI.getArtifactCache();
+        if (cache != null) {
+            // *** Compress the file into the cache, unless a failed push left it there, and PUT it to S3 ***
+            ArtifactCache.Artifact artifact = cache.obtain(file, choice,
+                    target -> coveoPushAPI.compressFile(file, target, choice));
+            try {
+                String fileId = coveoPushAPI.putArtifactOnS3(artifact);
+
+                // *** PUT the JSON Document on Coveo; only then is the compressed file no longer needed
+                coveoPushAPI.putDocumentOnCoveo(document -> encode(document, file, fileId, choice.type), docId, orderingId);
+            } catch (Exception e) {
+                cache.release(artifact);
+                throw e;
+            }
+            cache.evict(artifact);
+            return;
+        }
+
+        // *** Get Pre-Signed AWS S3 URL for uploading file ***
+        AbstractMap.SimpleEntry<String, String> s3File = coveoPushAPI.takeS3File();
+
+        // *** Compress the file, unless it is compressed already, and PUT it to S3 ***
+        coveoPushAPI.putCompressedFileOnS3(file, s3File.getKey(), choice);
+
+        // *** PUT the JSON Document on Coveo, encoded straight into the request
+        String fileId = s3File.getValue();
+        coveoPushAPI.putDocumentOnCoveo(document -> encode(document, file, fileId, choice.type), docId, orderingId);
+    }
+
+    /**
+     * Build the JSON Document of a file uploaded to S3
+     *
+     * @param file   the original (pre-compressed) file
+     * @param fileId the fileId the compressed file was uploaded to, or null for the metadata only
+     * @param compressionType how the uploaded file was compressed, or null for the metadata only
+     */
+    static String toJson(File file, String fileId, CompressionType compressionType) throws Exception {
+        return DocumentEncoder.toJson(document -> encode(document, file, fileId, compressionType));
+    }
+
+    /**
+     * Write the fields of the JSON Document of a file uploaded to S3, as {@link #toJson(File, String, CompressionType)}
+     */
+    static void encode(DocumentEncoder document, File file, String fileId, CompressionType compressionType) throws IOException {
+        encode(document, file, fileId, compressionType, null);
+    }
+
+    /**
+     * Write the fields of the JSON Document of a file, and extra fields, which take the place of the file fields of
+     * the same name; the data fields are never replaced
+     *
+     * @param metadata the extra fields, or null
+     */
+    static void encode(DocumentEncoder document, File file, String fileId, CompressionType compressionType,
+                       JSONObject metadata) throws IOException {
+        if (fileId != null) {
+            document.fileReference(fileId, compressionType);
+        }
+
+        if (!overridden(metadata, "size")) {
+            document.field("size", file.length());
+        }
+
+        if (!overridden(metadata, "date")) {
+            SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+            sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
+            document.field("date", sdf.format(new Date(file.lastModified())));
+        }
+
+        if (!overridden(metadata, "FileExtension")) {
+            String extension = FilenameUtils.getExtension(file.getName());
+            // add period to extension; use .txt if no extension was found
+            document.field("FileExtension", StringUtils.isBlank(extension) ? ".txt" : "." + extension);
+        }
+
+        if (metadata != null) {
+            Iterator<?> keys = metadata.keys();
+            while (keys.hasNext()) {
+                String key = (String) keys.next();
+                if (!DATA_FIELDS.contains(key)) {
+                    document.field(key, metadata.opt(key));
+                }
+            }
+        }
+    }
+
+    private static boolean overridden(JSONObject metadata, String field) {
+        return metadata != null && metadata.has(field);
+    }
+
+}
@@ -0,0 +1,350 @@
+import org.apache.commons.cli.*;
+import org.json.JSONObject;
+
+import java.io.*;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+
+public class HotPathBenchmark {
+
+    private static final Logger LOGGER =
+            Logger.getLogger(HotPathBenchmark.class.getName());
+
+    private static final String UPLOAD_URI = "http://s3.benchmark.invalid/upload";
+    // each measured iteration processes at least this much, so that small sizes are not dominated by timer noise
+    private static final long BYTES_PER_ITERATION = 64L * 1024 * 1024;
+
+    // JSON document of the current size, for putDocumentOnCoveo
+    private static final Map<Long, String> DOCUMENTS = new HashMap<>();
+
+    /**
+     * One operation of a benchmark, on a file of the size being measured
+     */
+    private interface Operation {
+        void run(File file) throws Exception;
+    }
+
+    private static class Benchmark {
+        final String name;
+        final long maxSize;
+        final Operation operation;
+
+        Benchmark(String name, long maxSize, Operation operation) {
+            this.name = name;
+            this.maxSize = maxSize;
+            this.operation = operation;
+        }
+    }
+
+    /**
+     * Usage: HotPathBenchmark [-s 1K,64K,1M,64M,1G] [-w 2] [-i 5] [-b zlibStream,putFileOnS3]
+     *
+     * Measures the CPU-bound paths of the client over files of each size: compression, the copy loops of the
+     * uploads, and JSON document building. Requests go to an in-memory transport that reads and discards the
+     * bodies, so no network is involved. For each benchmark and size, prints the time per operation, the throughput
+     * and the bytes allocated per operation by the benchmark thread, to compare against after a change.
+     *
+     * @param args
+     */
+    public static void main(String[] args) {
+
+        List<Long> sizes = new ArrayList<>();
+        int warmupIterations = 2;
+        int iterations = 5;
+        Set<String> selected = null;
+
+        // create the command line parser
+        CommandLineParser parser = new DefaultParser();
+
+        // create the Options
+        Options options = new Options();
+        options.addOption(Option.builder("s")
+                .longOpt("sizes")
+                .desc("Comma-separated file sizes, with K, M or G suffixes (default 1K,64K,1M,64M,1G)")
+                .hasArg().build());
+        options.addOption(Option.builder("w")
+                .longOpt("warmup")
+                .desc("Warmup iterations per benchmark and size (default 2)")
+                .hasArg().build());
+        options.addOption(Option.builder("i")
+                .longOpt("iterations")
+                .desc("Measured iterations per benchmark and size (default 5)")
+                .hasArg().build());
+        options.addOption(Option.builder("b")
+                .longOpt("benchmarks")
+                .desc("Comma-separated benchmarks to run (default all)")
+                .hasArg().build());
+
+        try {
+            // parse the command line arguments
+            CommandLine line = parser.parse(options, args);
+
+            for (String size : line.getOptionValue("s", "1K,64K,1M,64M,1G").split(",")) {
+                sizes.add(parseSize(size.trim()));
+            }
+            if (line.hasOption("w")) {
+                warmupIterations = Integer.parseInt(line.getOptionValue("w"));
+            }
+            if (line.hasOption("i")) {
+                iterations = Integer.parseInt(line.getOptionValue("i"));
+            }
+            if (line.hasOption("b")) {
+                selected = new HashSet<>(Arrays.asList(line.getOptionValue("b").split(",")));
+            }
+
+        } catch (ParseException | NumberFormatException exp) {
+            HelpFormatter formatter = new HelpFormatter();
+            formatter.printHelp("HotPathBenchmark <args>", options);
+            System.exit(0);
+        }
+
+        // the client logs every request; keep that out of the measurements
+        Logger.getLogger("").setLevel(Level.WARNING);
+
+        File dir = null;
+        try {
+            dir = Files.createTempDirectory("hotpath").toFile();
+            CoveoPushAPI coveoPushAPI = new CoveoPushAPI("benchmark", "benchmark", "benchmark",
+                    "http://push.benchmark.invalid", new DrainingTransport());
+            coveoPushAPI.setParallelDeflater(null);
+            CoveoPushAPI parallelPushAPI = new CoveoPushAPI("benchmark", "benchmark", "benchmark",
+                    "http://push.benchmark.invalid", new DrainingTransport());
+            ParallelDeflater parallelDeflater = new ParallelDeflater();
+            parallelPushAPI.setParallelDeflater(parallelDeflater);
+            File scratch = new File(dir, "scratch");
+
+            List<Benchmark> benchmarks = Arrays.asList(
+                    // compress into a temp file, as the original upload path did
+                    new Benchmark("zlibInputStream", Long.MAX_VALUE, file -> {
+                        try (InputStream in = coveoPushAPI.zlibInputStream(new FileInputStream(file), scratch)) {
+                            drain(in);
+                        }
+                    }),
+                    new Benchmark("zlibStream", Long.MAX_VALUE, file -> {
+                        try (InputStream in = CompressionType.ZLIB.open(file, Deflater.DEFAULT_COMPRESSION, null)) {
+                            drain(in);
+                        }
+                    }),
+                    // allocations of the pool threads are not counted
+                    new Benchmark("zlibStreamParallel", Long.MAX_VALUE, file -> {
+                        try (InputStream in = CompressionType.ZLIB.open(file, Deflater.DEFAULT_COMPRESSION, parallelDeflater)) {
+                            drain(in);
+                        }
+                    }),
+                    // doCopy: file to file, zero-copy
+                    new Benchmark("copyFileToFile", Long.MAX_VALUE, file -> {
+                        try (InputStream in = new FileInputStream(file); OutputStream out = new FileOutputStream(scratch)) {
+                            StreamTransfer.copy(in, out);
+                        }
+                    }),
+                    // the copy loop of a file upload body
+                    new Benchmark("putFileOnS3", Long.MAX_VALUE, file -> coveoPushAPI.putFileOnS3(file, UPLOAD_URI)),
+                    new Benchmark("putZlibFileOnS3", Long.MAX_VALUE, file -> coveoPushAPI.putZlibFileOnS3(file, UPLOAD_URI)),
+                    new Benchmark("putZlibFileOnS3Parallel", Long.MAX_VALUE, file -> parallelPushAPI.putZlibFileOnS3(file, UPLOAD_URI)),
+                    // JSON document of the size of the file, as sent by putDocumentOnCoveo; the Push API takes up to 5 MB
+                    new Benchmark("putDocumentOnCoveo", 64L * 1024 * 1024, file ->
+                            coveoPushAPI.putDocumentOnCoveo(documentOfSize(file), "http://benchmark/doc")),
+                    new Benchmark("putDocumentWithData", FileDocumentPusher.MAX_INLINE_THRESHOLD, file ->
+                            coveoPushAPI.putDocumentWithDataOnCoveo(document -> FileDocumentPusher.encode(document, file,
+                                    null, null), "http://benchmark/doc", -1, file, CompressionSelector.Choice.ZLIB)),
+                    // the document of UploadLargeFileTest as a String, which only depends on the file's metadata
+                    new Benchmark("toJson", Long.MAX_VALUE, file ->
+                            FileDocumentPusher.toJson(file, "benchmark-file-id", CompressionType.ZLIB)));
+
+            System.out.println(String.format("%-24s %8s %10s %12s %10s %14s %6s", "benchmark", "size", "ops",
+                    "ms/op", "MB/s", "alloc B/op", "gc"));
+            for (long size : sizes) {
+                File file = new File(dir, "data-" + size);
+                writeSample(file, size);
+                for (Benchmark benchmark : benchmarks) {
+                    if (selected != null && !selected.contains(benchmark.name)) {
+                        continue;
+                    }
+                    if (size > benchmark.maxSize) {
+                        System.out.println(String.format("%-24s %8s %10s", benchmark.name, formatSize(size), "skipped"));
+                        continue;
+                    }
+                    measure(benchmark, file, warmupIterations, iterations);
+                }
+                file.delete();
+            }
+
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "Failed to run benchmarks", e);
+        } finally {
+            if (dir != null) {
+                for (File f : Objects.requireNonNull(dir.listFiles())) {
+                    f.delete();
+                }
+                dir.delete();
+            }
+        }
+
+    }
+
+    private static void measure(Benchmark benchmark, File file, int warmupIterations, int iterations) throws Exception {
+        long size = file.length();
+        // metadata-only benchmarks do not depend on the size; give them enough operations to measure
+        long opsPerIteration = benchmark.name.equals("toJson") ? 10000 : Math.max(1, BYTES_PER_ITERATION / Math.max(1, size));
+
+        for (int i = 0; i < warmupIterations; i++) {
+            for (long op = 0; op < opsPerIteration; op++) {
+                benchmark.operation.run(file);
+            }
+        }
+
+        com.sun.management.ThreadMXBean threads = allocationCounter();
+        long threadId = Thread.currentThread().getId();
+        long gcCount = gcCount();
+        long allocated = threads != null ? threads.getThreadAllocatedBytes(threadId) : 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            for (long op = 0; op < opsPerIteration; op++) {
+                benchmark.operation.run(file);
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        allocated = threads != null ? threads.getThreadAllocatedBytes(threadId) - allocated : -1;
+
+        long ops = opsPerIteration * iterations;
+        double msPerOp = elapsed / 1e6 / ops;
+        double mbPerSecond = size * (double) ops / (1024 * 1024) / (elapsed / 1e9);
+        System.out.println(String.format("%-24s %8s %10d %12.4f %10.1f %14d %6d", benchmark.name, formatSize(size), ops,
+                msPerOp, mbPerSecond, allocated < 0 ? -1 : allocated / ops, gcCount() - gcCount));
+    }
+
+    /**
+     * @return the HotSpot extension that counts allocated bytes per thread, or null if the JVM does not have it
+     */
+    private static com.sun.management.ThreadMXBean allocationCounter() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) threads;
+            if (hotspot.isThreadAllocatedMemorySupported()) {
+                hotspot.setThreadAllocatedMemoryEnabled(true);
+                return hotspot;
+            }
+        }
+        return null;
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        StreamTransfer.copy(in, OutputStream.nullOutputStream());
+    }
+
+    /**
+     * @return a JSON document with a body field holding the file's text, built once per size
+     */
+    private static String documentOfSize(File file) throws Exception {
+        String document = DOCUMENTS.get(file.length());
+        if (document == null) {
+            String text = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+            document = "{\"title\":\"benchmark\",\"data\":" + JSONObject.quote(text) + "}";
+            DOCUMENTS.clear();
+            DOCUMENTS.put(file.length(), document);
+        }
+        return document;
+    }
+
+    /**
+     * Write a file of log-like text, compressible about as well as typical documents
+     */
+    private static void writeSample(File file, long size) throws IOException {
+        Random random = new Random(size);
+        byte[] line = new byte[128];
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), StreamTransfer.BUFFER_SIZE)) {
+            long written = 0;
+            while (written < size) {
+                byte[] text = ("2024-01-" + (10 + random.nextInt(20)) + " INFO request " + random.nextInt(1000000)
+                        + " served in " + random.nextInt(5000) + " ms for user" + random.nextInt(500) + "\n")
+                        .getBytes(StandardCharsets.US_ASCII);
+                int n = (int) Math.min(Math.min(text.length, line.length), size - written);
+                System.arraycopy(text, 0, line, 0, n);
+                out.write(line, 0, n);
+                written += n;
+            }
+        }
+    }
+
+    private static long parseSize(String size) {
+        long unit = 1;
+        switch (Character.toUpperCase(size.charAt(size.length() - 1))) {
+            case 'K':
+                unit = 1024;
+                break;
+            case 'M':
+                unit = 1024 * 1024;
+                break;
+            case 'G':
+                unit = 1024 * 1024 * 1024;
+                break;
+            default:
+                return Long.parseLong(size);
+        }
+        return Long.parseLong(size.substring(0, size.length() - 1)) * unit;
+    }
+
+    private static String formatSize(long size) {
+        if (size >= 1024 * 1024 * 1024 && size % (1024 * 1024 * 1024) == 0) {
+            return size / (1024 * 1024 * 1024) + "G";
+        }
+        if (size >= 1024 * 1024 && size % (1024 * 1024) == 0) {
+            return size / (1024 * 1024) + "M";
+        }
+        if (size >= 1024 && size % 1024 == 0) {
+            return size / 1024 + "K";
+        }
+        return String.valueOf(size);
+    }
+
+    /**
+     * Transport that answers every request without network: request bodies are read and discarded on the calling
+     * thread, so their copy loops are measured, and responses are what the Push API and S3 return on success.
+     */
+    private static class DrainingTransport implements PushTransport {
+        private static final String S3_FILE = "{\"uploadUri\":\"" + UPLOAD_URI + "\",\"fileId\":\"benchmark-file-id\"}";
+
+        @Override
+        public PushResponse send(PushRequest request) throws IOException {
+            if (request.getBody() != null) {
+                try (InputStream in = request.getBody().open()) {
+                    drain(in);
+                }
+            }
+            String path = request.getUri().getPath();
+            if (request.getUri().toString().startsWith(UPLOAD_URI)) {
+                return new PushResponse(200, Collections.emptyMap(), "");
+            } else if (path.endsWith("/files")) {
+                return new PushResponse(201, Collections.emptyMap(), S3_FILE);
+            } else if (path.endsWith("/status")) {
+                return new PushResponse(201, Collections.emptyMap(), "");
+            }
+            return new PushResponse(202, Collections.emptyMap(), "");
+        }
+
+        @Override
+        public CompletableFuture<PushResponse> sendAsync(PushRequest request) {
+            try {
+                return CompletableFuture.completedFuture(send(request));
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+    }
+
+}
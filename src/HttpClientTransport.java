@@ -0,0 +1,140 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link PushTransport} on {@link java.net.http.HttpClient}.
+ * <p>
+ * Connections are kept alive and reused across requests, and HTTP/2 is used when the server offers it, so many
+ * requests can be in flight on few connections. Asynchronous requests do not hold a thread while they wait.
+ */
+public class HttpClientTransport implements PushTransport {
+
+    public static final Duration DEFAULT_CONNECT_TIMEOUT = Duration.ofSeconds(15);
+
+    private static HttpClientTransport defaultTransport;
+
+    private final HttpClient client;
+
+    /**
+     * @return a transport shared by every client that is not given one
+     */
+    public static synchronized HttpClientTransport getDefault() {
+        if (defaultTransport == null) {
+            defaultTransport = new HttpClientTransport(DEFAULT_CONNECT_TIMEOUT, newDaemonExecutor());
+        }
+        return defaultTransport;
+    }
+
+    /**
+     * @param connectTimeout how long to wait for a new connection to be established
+     * @param executor       runs the client's I/O and completes the futures of asynchronous requests
+     */
+    public HttpClientTransport(Duration connectTimeout, Executor executor) {
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(connectTimeout)
+                .followRedirects(HttpClient.Redirect.NEVER)
+                .executor(executor)
+                .build();
+    }
+
+    @Override
+    public PushResponse send(PushRequest request) throws IOException, InterruptedException {
+        try {
+            return toPushResponse(client.send(toHttpRequest(request), HttpResponse.BodyHandlers.ofByteArray()));
+        } catch (UncheckedIOException e) {
+            // the body stream could not be opened
+            throw e.getCause();
+        }
+    }
+
+    @Override
+    public CompletableFuture<PushResponse> sendAsync(PushRequest request) {
+        HttpRequest httpRequest;
+        try {
+            httpRequest = toHttpRequest(request);
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return client.sendAsync(httpRequest, HttpResponse.BodyHandlers.ofByteArray())
+                .thenApply(HttpClientTransport::toPushResponse);
+    }
+
+    private static HttpRequest toHttpRequest(PushRequest request) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(request.getUri())
+                .method(request.getMethod(), toBodyPublisher(request.getBody()));
+        for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+            builder.header(header.getKey(), header.getValue());
+        }
+        if (request.getTimeout() != null) {
+            builder.timeout(request.getTimeout());
+        }
+        return builder.build();
+    }
+
+    private static HttpRequest.BodyPublisher toBodyPublisher(RequestBody body) {
+        if (body == null || body.contentLength() == 0) {
+            return HttpRequest.BodyPublishers.noBody();
+        }
+        HttpRequest.BodyPublisher publisher = HttpRequest.BodyPublishers.ofInputStream(() -> {
+            try {
+                return body.open();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        long length = body.contentLength();
+        // with a known length the body is streamed with a Content-Length header, otherwise it is sent chunked
+        return length > 0 ? HttpRequest.BodyPublishers.fromPublisher(publisher, length) : publisher;
+    }
+
+    /**
+     * The body is received as bytes, so that its size is known, and decoded as BodyHandlers.ofString() would
+     */
+    private static PushResponse toPushResponse(HttpResponse<byte[]> response) {
+        byte[] body = response.body();
+        return new PushResponse(response.statusCode(), response.headers().map(),
+                new String(body, charset(response.headers())), body.length);
+    }
+
+    /**
+     * @return the charset of the Content-Type header, UTF-8 if it has none or an unknown one
+     */
+    private static Charset charset(HttpHeaders headers) {
+        String type = headers.firstValue("Content-Type").orElse("");
+        int start = type.toLowerCase(Locale.ROOT).indexOf("charset=");
+        if (start >= 0) {
+            String name = type.substring(start + "charset=".length()).split(";")[0].trim().replace("\"", "");
+            try {
+                return Charset.forName(name);
+            } catch (IllegalArgumentException e) {
+                // unsupported or illegal name
+            }
+        }
+        return StandardCharsets.UTF_8;
+    }
+
+    private static ExecutorService newDaemonExecutor() {
+        AtomicInteger count = new AtomicInteger();
+        return Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "coveo-http-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+}
@@ -0,0 +1,151 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Pushes only what changed in a folder since the previous run, as recorded in a {@link SyncManifest}.
+ * <p>
+ * Files whose size and mtime match the manifest are skipped without being read. The others are hashed in
+ * parallel; those whose content hash also matches are only recorded as seen, and the rest are pushed with
+ * {@link FileDocumentPusher}. Documents whose files disappeared since the previous run are deleted in batches.
+ */
+public class IncrementalSync {
+
+    /** Counters of a run */
+    public static class Result {
+        public final AtomicLong scanned = new AtomicLong();
+        public final AtomicLong unchangedStat = new AtomicLong();
+        public final AtomicLong unchangedContent = new AtomicLong();
+        public final AtomicLong pushed = new AtomicLong();
+        public final AtomicLong failed = new AtomicLong();
+        public final AtomicLong deleted = new AtomicLong();
+
+        @Override
+        public String toString() {
+            return "scanned=" + scanned + ", unchanged (size/mtime)=" + unchangedStat + ", unchanged (content)=" + unchangedContent
+                    + ", pushed=" + pushed + ", failed=" + failed + ", deleted=" + deleted;
+        }
+    }
+
+    private static final Logger LOGGER =
+            Logger.getLogger(IncrementalSync.class.getName());
+
+    private final CoveoPushAPI coveoPushAPI;
+    private final SyncManifest manifest;
+    private final FileDocumentPusher pusher;
+    private final int threads;
+
+    /**
+     * @param coveoPushAPI client the changes are pushed with
+     * @param manifest     state of the previous runs, updated by this one
+     * @param threads      number of files hashed and pushed at once, each on a virtual thread when the JVM has them
+     */
+    public IncrementalSync(CoveoPushAPI coveoPushAPI, SyncManifest manifest, int threads) {
+        this.coveoPushAPI = coveoPushAPI;
+        this.manifest = manifest;
+        this.pusher = new FileDocumentPusher(coveoPushAPI);
+        this.threads = threads;
+    }
+
+    /**
+     * Sync a folder tree: push new and changed files, and delete the documents of files that disappeared.
+     * Files that fail to push keep their previous manifest entry, so they are retried on the next run.
+     *
+     * @param root    the folder to sync
+     * @param baseUri prefix of the documentIds; the path of each file relative to <code>root</code> is appended
+     */
+    public Result run(File root, String baseUri) throws Exception {
+        Result result = new Result();
+        manifest.beginRun();
+
+        // caps the files being hashed and pushed, so the walk does not get ahead of the workers
+        Path rootPath = root.toPath();
+        try (PushExecutor executor = new PushExecutor(threads);
+             Stream<Path> paths = Files.walk(rootPath)) {
+            Iterator<Path> it = paths.filter(Files::isRegularFile).iterator();
+            while (it.hasNext()) {
+                Path path = it.next();
+                File file = path.toFile();
+                String docId = baseUri + rootPath.relativize(path).toString().replace(File.separatorChar, '/');
+                long size = file.length();
+                long lastModified = file.lastModified();
+                result.scanned.incrementAndGet();
+
+                SyncManifest.Entry entry = manifest.get(docId);
+                if (entry != null && entry.size == size && entry.lastModified == lastModified) {
+                    manifest.touch(docId, size, lastModified);
+                    result.unchangedStat.incrementAndGet();
+                    continue;
+                }
+
+                executor.execute(() -> sync(file, docId, size, lastModified, entry, result));
+            }
+        }
+
+        // Delete the documents of files that disappeared, then forget them
+        try (BatchDocumentProducer producer = new BatchDocumentProducer(coveoPushAPI, BatchDocumentProducer.DEFAULT_MAX_BATCH_BYTES,
+                BatchDocumentProducer.DEFAULT_MAX_BATCH_DOCUMENTS, 0)) {
+            manifest.forEachUnseen(producer::delete);
+        }
+        result.deleted.set(manifest.removeUnseen());
+        manifest.force();
+
+        LOGGER.info("Sync of " + root + " done: " + result);
+        LOGGER.info("Compression of " + root + ":" + System.lineSeparator() + coveoPushAPI.getCompressionStats());
+        return result;
+    }
+
+    private void sync(File file, String docId, long size, long lastModified, SyncManifest.Entry entry, Result result) {
+        try {
+            byte[] hash = contentHash(file);
+            if (entry != null && Arrays.equals(hash, entry.contentHash)) {
+                // touched but not modified
+                manifest.touch(docId, size, lastModified);
+                result.unchangedContent.incrementAndGet();
+                return;
+            }
+            long orderingId = System.currentTimeMillis();
+            pusher.push(file, docId, orderingId);
+            manifest.put(docId, size, lastModified, hash, orderingId);
+            result.pushed.incrementAndGet();
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "Failed to sync " + file, e);
+            result.failed.incrementAndGet();
+            try {
+                // keep the previous entry, so the document is neither deleted now nor skipped next time
+                manifest.markSeen(docId);
+            } catch (IOException ignored) {
+                // the entry may then be deleted, and pushed again on the next run
+            }
+        }
+    }
+
+    /**
+     * @return the MD5 of a file's content
+     */
+    static byte[] contentHash(File file) throws Exception {
+        MessageDigest md5 = MessageDigest.getInstance("MD5");
+        ByteBuffer buffer = ByteBuffer.allocate(StreamTransfer.BUFFER_SIZE);
+        try (FileInputStream in = new FileInputStream(file)) {
+            FileChannel channel = in.getChannel();
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                md5.update(buffer);
+                buffer.clear();
+            }
+        }
+        return md5.digest();
+    }
+
+}
@@ -0,0 +1,341 @@
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.AbstractMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pushes files through four concurrent stages connected by bounded queues:
+ * <ol>
+ * <li>read: stat the file, sample it to choose its compression ({@link CompressionSelector})</li>
+ * <li>compress: compress it into a temporary file</li>
+ * <li>upload: PUT it in the S3 file container</li>
+ * <li>commit: PUT its JSON Document, built like {@link FileDocumentPusher} does, on the source</li>
+ * </ol>
+ * Files that need no compression skip the compress stage, and files smaller than the inline threshold go straight
+ * to the commit stage, which embeds them in their document.
+ * <p>
+ * Each stage has its own workers, on virtual threads when the JVM has them (see {@link PushExecutor}), and a queue
+ * of twice as many items. A full queue blocks the stage before it, up to
+ * {@link #submit(File, String, JSONObject)}, so memory and temporary disk use are bounded by the number of threads,
+ * whatever the number of files. Failed files are logged and counted; the others go on. If a worker is interrupted,
+ * the pipeline is cancelled: the files still queued are failed, and {@link #close()} reports it.
+ */
+public class IngestPipeline implements Closeable {
+
+    /** Counters of a pipeline */
+    public static class Result {
+        public final AtomicLong submitted = new AtomicLong();
+        public final AtomicLong inlined = new AtomicLong();
+        public final AtomicLong uploaded = new AtomicLong();
+        public final AtomicLong committed = new AtomicLong();
+        public final AtomicLong failed = new AtomicLong();
+        public final AtomicLong bytesRead = new AtomicLong();
+        public final AtomicLong bytesUploaded = new AtomicLong();
+
+        @Override
+        public String toString() {
+            return "submitted=" + submitted + ", inlined=" + inlined + ", uploaded=" + uploaded + ", committed=" + committed
+                    + ", failed=" + failed + ", bytes read=" + bytesRead + ", bytes uploaded=" + bytesUploaded;
+        }
+    }
+
+    private static final Logger LOGGER =
+            Logger.getLogger(IngestPipeline.class.getName());
+
+    private static class Item {
+        final File file;
+        final String docId;
+        final JSONObject metadata;
+        long orderingId;
+        CompressionSelector.Choice choice;
+        boolean inline;
+        File compressed;
+        String fileId;
+
+        Item(File file, String docId, JSONObject metadata) {
+            this.file = file;
+            this.docId = docId;
+            this.metadata = metadata;
+        }
+    }
+
+    private interface Handler {
+        void handle(Item item) throws Exception;
+    }
+
+    /**
+     * Workers taking items from a bounded queue, each a long-running task of the stage's {@link PushExecutor}
+     */
+    private class Stage {
+        private final String name;
+        private final BlockingQueue<Item> queue;
+        private final PushExecutor workers;
+        private final Handler handler;
+        private final AtomicLong busyNanos = new AtomicLong();
+        private final AtomicLong count = new AtomicLong();
+
+        Stage(String name, int threads, PushExecutor.Mode mode, Handler handler) {
+            this.name = name;
+            this.queue = new ArrayBlockingQueue<>(threads * 2);
+            this.handler = handler;
+            this.workers = new PushExecutor(mode, threads, "coveo-ingest-" + name + "-");
+            for (int i = 0; i < threads; i++) {
+                try {
+                    workers.execute(this::work);
+                } catch (InterruptedException e) {
+                    // never waits: the executor has a slot per worker
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+
+        void put(Item item) throws InterruptedException {
+            queue.put(item);
+        }
+
+        /**
+         * Let the workers finish the queued items, then stop them
+         */
+        void finish() throws InterruptedException, InterruptedIOException {
+            for (int i = 0; i < workers.getMaxInFlight(); i++) {
+                queue.put(END);
+            }
+            workers.close();
+        }
+
+        /**
+         * Handle items until the end marker. An interrupted worker does not exit: it cancels the pipeline and goes on
+         * taking items, failing them, so that no queue is left full and {@link #finish()} still returns.
+         */
+        private void work() {
+            while (true) {
+                Item item;
+                try {
+                    item = queue.take();
+                } catch (InterruptedException e) {
+                    cancel(name, e);
+                    continue;
+                }
+                if (item == END) {
+                    return;
+                }
+                long start = System.nanoTime();
+                try {
+                    if (cancelled != null) {
+                        throw new InterruptedIOException("IngestPipeline was cancelled");
+                    }
+                    handler.handle(item);
+                } catch (InterruptedException e) {
+                    cancel(name, e);
+                    fail(item, name, e);
+                } catch (Exception e) {
+                    fail(item, name, e);
+                }
+                busyNanos.addAndGet(System.nanoTime() - start);
+                count.incrementAndGet();
+            }
+        }
+
+        @Override
+        public String toString() {
+            long n = count.get();
+            return String.format("%s: %d files, %.1f ms each, %d queued", name, n,
+                    n == 0 ? 0 : busyNanos.get() / 1e6 / n, queue.size());
+        }
+    }
+
+    private static final Item END = new Item(null, null, null);
+
+    private final CoveoPushAPI coveoPushAPI;
+    private final CompressionSelector selector;
+    private final long inlineThreshold;
+    private final Result result = new Result();
+
+    private final Stage commit;
+    private final Stage upload;
+    private final Stage compress;
+    private final Stage read;
+    private boolean closed;
+    // the interrupt of a worker, after which the queued files are failed rather than pushed
+    private volatile InterruptedException cancelled;
+
+    public IngestPipeline(CoveoPushAPI coveoPushAPI, int threads) {
+        this(coveoPushAPI, new CompressionSelector(), FileDocumentPusher.DEFAULT_INLINE_THRESHOLD, threads);
+    }
+
+    public IngestPipeline(CoveoPushAPI coveoPushAPI, CompressionSelector selector, long inlineThreshold, int threads) {
+        this(coveoPushAPI, selector, inlineThreshold, threads, PushExecutor.Mode.AUTO);
+    }
+
+    /**
+     * @param coveoPushAPI    client the files are pushed with
+     * @param selector        chooses how each file is compressed
+     * @param inlineThreshold files smaller than this are embedded in their JSON Document; 0 to always use S3
+     * @param threads         number of workers of each stage
+     * @param mode            whether the workers run on virtual or platform threads, see {@link PushExecutor}
+     */
+    public IngestPipeline(CoveoPushAPI coveoPushAPI, CompressionSelector selector, long inlineThreshold, int threads,
+                          PushExecutor.Mode mode) {
+        if (inlineThreshold < 0 || inlineThreshold > FileDocumentPusher.MAX_INLINE_THRESHOLD) {
+            throw new IllegalArgumentException("Inline threshold must be between 0 and "
+                    + FileDocumentPusher.MAX_INLINE_THRESHOLD + ": " + inlineThreshold);
+        }
+        if (threads <= 0) {
+            throw new IllegalArgumentException("threads must be positive: " + threads);
+        }
+        this.coveoPushAPI = coveoPushAPI;
+        this.selector = selector;
+        this.inlineThreshold = inlineThreshold;
+        // started from the last stage, so that each stage has somewhere to put its items
+        commit = new Stage("commit", threads, mode, this::commit);
+        upload = new Stage("upload", threads, mode, this::upload);
+        compress = new Stage("compress", threads, mode, this::compress);
+        read = new Stage("read", threads, mode, this::read);
+    }
+
+    /**
+     * Queue a file, blocking while the read stage is full
+     *
+     * @param file     the file to push
+     * @param docId    the unique Coveo documentId / URI
+     * @param metadata extra fields of the JSON Document, or null
+     */
+    public void submit(File file, String docId, JSONObject metadata) throws InterruptedException {
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("IngestPipeline is closed");
+            }
+        }
+        if (cancelled != null) {
+            throw new IllegalStateException("IngestPipeline was cancelled", cancelled);
+        }
+        result.submitted.incrementAndGet();
+        read.put(new Item(file, docId, metadata));
+    }
+
+    /**
+     * @return the counters, updated as files go through
+     */
+    public Result getResult() {
+        return result;
+    }
+
+    /**
+     * Push the queued files, then stop the stages
+     *
+     * @throws InterruptedIOException if a worker was interrupted, the files still queued then having failed
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        try {
+            read.finish();
+            compress.finish();
+            upload.finish();
+            commit.finish();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while finishing the pipeline");
+        }
+        LOGGER.info("Ingestion done: " + result + System.lineSeparator() + this);
+        if (cancelled != null) {
+            InterruptedIOException e = new InterruptedIOException("A worker was interrupted, the files it left failed");
+            e.initCause(cancelled);
+            throw e;
+        }
+    }
+
+    /**
+     * One line per stage, with the time it spends per file: the slowest stage bounds the throughput
+     */
+    @Override
+    public String toString() {
+        return read + System.lineSeparator() + compress + System.lineSeparator() + upload + System.lineSeparator() + commit;
+    }
+
+    private void read(Item item) throws Exception {
+        if (!item.file.isFile()) {
+            throw new IOException("Not a file: " + item.file);
+        }
+        result.bytesRead.addAndGet(item.file.length());
+        item.orderingId = System.currentTimeMillis();
+        item.choice = selector.choose(item.file);
+        if (item.file.length() < inlineThreshold) {
+            item.inline = true;
+            commit.put(item);
+        } else if (item.choice.type == CompressionType.UNCOMPRESSED) {
+            upload.put(item);
+        } else {
+            compress.put(item);
+        }
+    }
+
+    private void compress(Item item) throws Exception {
+        item.compressed = File.createTempFile("ingest", ".compressed");
+        coveoPushAPI.compressFile(item.file, item.compressed, item.choice);
+        upload.put(item);
+    }
+
+    private void upload(Item item) throws Exception {
+        try {
+            File content = item.compressed != null ? item.compressed : item.file;
+            AbstractMap.SimpleEntry<String, String> s3File = coveoPushAPI.takeS3File();
+            coveoPushAPI.putFileOnS3(content, s3File.getKey());
+            item.fileId = s3File.getValue();
+            if (item.compressed == null) {
+                coveoPushAPI.getCompressionStats().record(item.choice, content.length(), content.length(), 0);
+            }
+            result.uploaded.incrementAndGet();
+            result.bytesUploaded.addAndGet(content.length());
+        } finally {
+            deleteCompressed(item);
+        }
+        commit.put(item);
+    }
+
+    private void commit(Item item) throws Exception {
+        if (item.inline) {
+            coveoPushAPI.putDocumentWithDataOnCoveo(document -> FileDocumentPusher.encode(document, item.file, null, null,
+                    item.metadata), item.docId, item.orderingId, item.file, item.choice);
+            result.inlined.incrementAndGet();
+        } else {
+            coveoPushAPI.putDocumentOnCoveo(document -> FileDocumentPusher.encode(document, item.file, item.fileId,
+                    item.choice.type, item.metadata), item.docId, item.orderingId);
+        }
+        result.committed.incrementAndGet();
+    }
+
+    private void cancel(String stage, InterruptedException e) {
+        if (cancelled == null) {
+            LOGGER.log(Level.SEVERE, "A " + stage + " worker was interrupted, cancelling the pipeline", e);
+            cancelled = e;
+        }
+    }
+
+    private void fail(Item item, String stage, Exception e) {
+        LOGGER.log(Level.SEVERE, "Failed to " + stage + " " + item.file, e);
+        result.failed.incrementAndGet();
+        deleteCompressed(item);
+    }
+
+    private static void deleteCompressed(Item item) {
+        if (item.compressed != null) {
+            item.compressed.delete();
+            item.compressed = null;
+        }
+    }
+
+}
@@ -0,0 +1,284 @@
+import org.apache.commons.cli.*;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+public class LoadGenerator {
+
+    private static final Logger LOGGER =
+            Logger.getLogger(LoadGenerator.class.getName());
+
+    /**
+     * Usage: LoadGenerator [-u http://localhost:8080] [-m document|file|batch|outbox] [-n 10000] [-c 16] [-z 4096]
+     *              [-e auto|virtual|platform]
+     *              [--latency-ms 5-50] [--throttle-rate 0.01] [--error-rate 0.01]
+     *
+     * Drives CoveoPushAPI with <code>-c</code> concurrent workers pushing <code>-n</code> documents of
+     * <code>-z</code> bytes, and reports documents per second, MB per second, the p50/p99/p999 latency of a
+     * document, and the peak thread count, heap and resident memory. Each document is pushed by a
+     * {@link PushExecutor} task, on a virtual or platform thread as chosen with <code>-e</code>. Without
+     * <code>-u</code>, an embedded {@link PushApiStandIn} is started, with the given latency, throttling and error
+     * rates.
+     * <ul>
+     * <li>document: each document is PUT with putDocumentOnCoveo</li>
+     * <li>file: each document is a file pushed through the S3 file container</li>
+     * <li>batch: documents are added to a BatchDocumentProducer</li>
+     * <li>outbox: documents are appended to a PushOutbox, the latency being that of an append; the run ends when
+     * the outbox is drained</li>
+     * </ul>
+     *
+     * @param args
+     */
+    public static void main(String[] args) {
+
+        String baseUrl = null;
+        String mode = "document";
+        int documents = 10000;
+        int concurrency = 16;
+        int documentSize = 4096;
+        PushExecutor.Mode executorMode = PushExecutor.Mode.AUTO;
+        long minLatency = 0;
+        long maxLatency = 0;
+        double throttleRate = 0;
+        double errorRate = 0;
+
+        // create the command line parser
+        CommandLineParser parser = new DefaultParser();
+
+        // create the Options
+        Options options = new Options();
+        options.addOption(Option.builder("u")
+                .longOpt("base-url")
+                .desc("Push API base URL (default: an embedded stand-in)")
+                .hasArg().build());
+        options.addOption(Option.builder("m")
+                .longOpt("mode")
+                .desc("document, file, batch or outbox (default document)")
+                .hasArg().build());
+        options.addOption(Option.builder("n")
+                .longOpt("documents")
+                .desc("Number of documents to push (default 10000)")
+                .hasArg().build());
+        options.addOption(Option.builder("c")
+                .longOpt("concurrency")
+                .desc("Number of concurrent workers (default 16)")
+                .hasArg().build());
+        options.addOption(Option.builder("z")
+                .longOpt("document-size")
+                .desc("Size of each document, in bytes (default 4096)")
+                .hasArg().build());
+        options.addOption(Option.builder("e")
+                .longOpt("executor")
+                .desc("auto, virtual or platform threads for the workers (default auto: virtual on Java 21 or later)")
+                .hasArg().build());
+        options.addOption(Option.builder()
+                .longOpt("latency-ms")
+                .desc("Stand-in latency range in milliseconds, e.g. 5-50")
+                .hasArg().build());
+        options.addOption(Option.builder()
+                .longOpt("throttle-rate")
+                .desc("Share of stand-in responses that are 429, from 0 to 1")
+                .hasArg().build());
+        options.addOption(Option.builder()
+                .longOpt("error-rate")
+                .desc("Share of stand-in responses that are 5xx, from 0 to 1")
+                .hasArg().build());
+
+        try {
+            // parse the command line arguments
+            CommandLine line = parser.parse(options, args);
+
+            baseUrl = line.getOptionValue("u");
+            mode = line.getOptionValue("m", mode);
+            documents = Integer.parseInt(line.getOptionValue("n", String.valueOf(documents)));
+            concurrency = Integer.parseInt(line.getOptionValue("c", String.valueOf(concurrency)));
+            documentSize = Integer.parseInt(line.getOptionValue("z", String.valueOf(documentSize)));
+            if (line.hasOption("e")) {
+                executorMode = PushExecutor.Mode.valueOf(line.getOptionValue("e").toUpperCase());
+            }
+            if (line.hasOption("latency-ms")) {
+                String[] range = line.getOptionValue("latency-ms").split("-");
+                minLatency = Long.parseLong(range[0]);
+                maxLatency = Long.parseLong(range[range.length - 1]);
+            }
+            throttleRate = Double.parseDouble(line.getOptionValue("throttle-rate", "0"));
+            errorRate = Double.parseDouble(line.getOptionValue("error-rate", "0"));
+            if (!Arrays.asList("document", "file", "batch", "outbox").contains(mode)) {
+                throw new ParseException("Unknown mode: " + mode);
+            }
+
+        } catch (ParseException | IllegalArgumentException exp) {
+            HelpFormatter formatter = new HelpFormatter();
+            formatter.printHelp("LoadGenerator <args>", options);
+            System.exit(0);
+        }
+
+        PushApiStandIn standIn = null;
+        File file = null;
+        File outboxDirectory = null;
+        try {
+            if (baseUrl == null) {
+                standIn = new PushApiStandIn();
+                standIn.setLatency(minLatency, maxLatency);
+                standIn.setThrottleRate(throttleRate);
+                standIn.setErrorRate(errorRate);
+                baseUrl = standIn.getBaseUrl();
+            }
+            // the client logs every request; keep that out of the measurements
+            Logger.getLogger("").setLevel(Level.WARNING);
+
+            CoveoPushAPI coveoPushAPI = new CoveoPushAPI("loadtest", "loadtest", "loadtest", baseUrl,
+                    HttpClientTransport.getDefault());
+
+            String json = document(documentSize);
+            file = File.createTempFile("loadtest", ".txt");
+            try (OutputStream out = new FileOutputStream(file)) {
+                out.write(json.getBytes(StandardCharsets.UTF_8));
+            }
+            File content = file;
+            // always through S3, whatever the document size
+            FileDocumentPusher pusher = new FileDocumentPusher(coveoPushAPI, new CompressionSelector(), 0);
+
+            long[] latencies = new long[documents];
+            AtomicLong failures = new AtomicLong();
+            long bytes = (long) documents * json.getBytes(StandardCharsets.UTF_8).length;
+            String pushMode = mode;
+            if (mode.equals("outbox")) {
+                outboxDirectory = Files.createTempDirectory("outbox").toFile();
+            }
+
+            String workerThreads = null;
+            long start = System.nanoTime();
+            try (SourceStatusSession.Job job = coveoPushAPI.getStatusSession().begin("REBUILD");
+                 BatchDocumentProducer producer = new BatchDocumentProducer(coveoPushAPI);
+                 PushOutbox outbox = outboxDirectory == null ? null : new PushOutbox(coveoPushAPI, outboxDirectory)) {
+                LOGGER.info("Source status: " + job.getStatus());
+                try (PushExecutor workers = new PushExecutor(executorMode, concurrency)) {
+                    workerThreads = workers.isVirtual() ? "virtual" : "platform";
+                    for (int n = 0; n < documents; n++) {
+                        int i = n;
+                        workers.execute(() -> {
+                            String docId = "http://loadtest/" + i;
+                            long opStart = System.nanoTime();
+                            try {
+                                if (pushMode.equals("document")) {
+                                    coveoPushAPI.putDocumentOnCoveo(json, docId);
+                                } else if (pushMode.equals("file")) {
+                                    pusher.push(content, docId, -1);
+                                } else if (pushMode.equals("outbox")) {
+                                    outbox.addOrUpdate(json, docId);
+                                } else {
+                                    producer.addOrUpdate(json, docId);
+                                }
+                            } catch (Exception e) {
+                                failures.incrementAndGet();
+                                LOGGER.log(Level.WARNING, "Failed to push " + docId, e);
+                            }
+                            latencies[i] = System.nanoTime() - opStart;
+                        });
+                    }
+                }
+                if (outbox != null) {
+                    outbox.awaitEmpty(Long.MAX_VALUE);
+                    System.out.println("outbox: " + outbox);
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+
+            Arrays.sort(latencies);
+            System.out.println(String.format("%s mode: %d documents of %d bytes, %d %s workers, %d failures", mode,
+                    documents, documentSize, concurrency, workerThreads, failures.get()));
+            System.out.println(String.format("%.1f docs/sec, %.2f MB/sec in %.2f s", documents / (elapsed / 1e9),
+                    bytes / (1024.0 * 1024) / (elapsed / 1e9), elapsed / 1e9));
+            System.out.println(String.format("latency p50=%.2f ms, p99=%.2f ms, p999=%.2f ms, max=%.2f ms",
+                    percentile(latencies, 0.5), percentile(latencies, 0.99), percentile(latencies, 0.999),
+                    percentile(latencies, 1)));
+            RequestGovernor governor = coveoPushAPI.getGovernor();
+            System.out.println("governor: requests=" + governor.getRequestCount() + ", retries=" + governor.getRetryCount()
+                    + ", throttles=" + governor.getThrottleCount() + ", failures=" + governor.getFailureCount()
+                    + ", concurrency limit=" + governor.getConcurrencyLimit());
+            if (standIn != null) {
+                System.out.println("stand-in: " + standIn);
+            }
+            System.out.println("memory: " + memoryReport());
+            System.out.println("buffer pool: " + BufferPool.getDefault());
+
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "Failed to generate load", e);
+        } finally {
+            if (standIn != null) {
+                standIn.close();
+            }
+            if (file != null) {
+                file.delete();
+            }
+            if (outboxDirectory != null) {
+                FileUtils.deleteQuietly(outboxDirectory);
+            }
+        }
+
+    }
+
+    /**
+     * @return the peak number of live threads, the peak heap use, and the peak resident set size on Linux
+     */
+    private static String memoryReport() {
+        long peakHeap = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peakHeap += pool.getPeakUsage().getUsed();
+            }
+        }
+        String report = String.format("peak threads=%d, peak heap=%.1f MB", ManagementFactory.getThreadMXBean().getPeakThreadCount(),
+                peakHeap / (1024.0 * 1024));
+        try {
+            // the native thread stacks only show in the resident set
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmHWM:")) {
+                    report += ", peak RSS=" + line.substring(6).trim();
+                }
+            }
+        } catch (IOException ignored) {
+            // not on Linux
+        }
+        return report;
+    }
+
+    /**
+     * @return the latency at a percentile of sorted nanosecond latencies, in milliseconds
+     */
+    private static double percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.min(sorted.length - 1, Math.max(0, Math.ceil(percentile * sorted.length) - 1));
+        return sorted[index] / 1e6;
+    }
+
+    /**
+     * @return a JSON document of about <code>size</code> bytes, with text in its data field
+     */
+    private static String document(int size) {
+        Random random = new Random(size);
+        StringBuilder text = new StringBuilder(size);
+        while (text.length() < size) {
+            text.append("word").append(random.nextInt(10000)).append(' ');
+        }
+        return "{\"title\":\"Load test document\",\"data\":\"" + text.substring(0, Math.max(0, size - 45)) + "\"}";
+    }
+
+}
@@ -0,0 +1,367 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One client for many sources: operations are queued per source, and a dispatcher thread takes them from the
+ * queues by smooth weighted round-robin, so that a source with a huge backlog gets its share of the requests and no
+ * more, and a source with a few documents is not stuck behind it.
+ * <p>
+ * All sources share one transport (and its connections), one {@link RequestGovernor} and one {@link PushExecutor},
+ * whose cap on the operations in flight is the concurrency budget of the whole client. Each source queue is bounded:
+ * a full queue blocks the producers of that source only.
+ * <p>
+ * The weights are in operations, not bytes: give less weight to sources whose operations are larger. The
+ * per-source counters ({@link #getStats(String)}, {@link #toString()}) show the split to tune them with.
+ */
+public class MultiSourcePushClient implements Closeable {
+
+    /**
+     * Something to do with the client of a source, e.g. PUT a document
+     */
+    public interface Operation {
+        void run(CoveoPushAPI client) throws Exception;
+    }
+
+    /** Counters of a source */
+    public static class SourceStats {
+        public final AtomicLong submitted = new AtomicLong();
+        public final AtomicLong completed = new AtomicLong();
+        public final AtomicLong failed = new AtomicLong();
+        public final AtomicLong inFlight = new AtomicLong();
+        /** total time of the completed and failed operations */
+        public final AtomicLong busyNanos = new AtomicLong();
+        private final long startNanos = System.nanoTime();
+
+        /**
+         * @return the number of operations completed per second, since the source was added
+         */
+        public double getThroughput() {
+            double seconds = (System.nanoTime() - startNanos) / 1e9;
+            return seconds > 0 ? completed.get() / seconds : 0;
+        }
+
+        @Override
+        public String toString() {
+            long done = completed.get() + failed.get();
+            return String.format("submitted=%d, completed=%d, failed=%d, in flight=%d, %.1f ops/sec, %.1f ms each",
+                    submitted.get(), completed.get(), failed.get(), inFlight.get(), getThroughput(),
+                    done == 0 ? 0 : busyNanos.get() / 1e6 / done);
+        }
+    }
+
+    private static final Logger LOGGER =
+            Logger.getLogger(MultiSourcePushClient.class.getName());
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 1000;
+
+    private static class Task {
+        final Operation operation;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        Task(Operation operation) {
+            this.operation = operation;
+        }
+    }
+
+    private static class Source {
+        final String sourceId;
+        final CoveoPushAPI client;
+        final ArrayDeque<Task> queue = new ArrayDeque<>();
+        final SourceStats stats = new SourceStats();
+        int weight;
+        // smooth weighted round-robin credit
+        int current;
+
+        Source(String sourceId, CoveoPushAPI client, int weight) {
+            this.sourceId = sourceId;
+            this.client = client;
+            this.weight = weight;
+        }
+    }
+
+    private final String baseUrl;
+    private final PushTransport transport;
+    private final RequestGovernor governor;
+    private final PushExecutor executor;
+    private final int queueCapacity;
+
+    // sources, queues and scheduling state, guarded by this
+    private final Map<String, Source> sources = new LinkedHashMap<>();
+    private boolean closed;
+
+    private final Thread dispatcher;
+
+    /**
+     * A client on the Push API, with the default transport and a governor of its own
+     *
+     * @param maxInFlight maximum number of operations running at once, all sources together
+     */
+    public MultiSourcePushClient(int maxInFlight) {
+        this(CoveoPushAPI.DEFAULT_BASE_URL, HttpClientTransport.getDefault(), new RequestGovernor(),
+                new PushExecutor(maxInFlight), DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param baseUrl       the Push API root, e.g. {@link CoveoPushAPI#DEFAULT_BASE_URL}
+     * @param transport     sends the requests of every source
+     * @param governor      retries and rate-limits the requests of every source
+     * @param executor      runs the operations; its cap is the concurrency budget of all sources. Closed with
+     *                      this client
+     * @param queueCapacity number of operations queued per source before its producers block
+     */
+    public MultiSourcePushClient(String baseUrl, PushTransport transport, RequestGovernor governor,
+                                 PushExecutor executor, int queueCapacity) {
+        if (queueCapacity <= 0) {
+            throw new IllegalArgumentException("queueCapacity must be positive: " + queueCapacity);
+        }
+        this.baseUrl = baseUrl;
+        this.transport = transport;
+        this.governor = governor;
+        this.executor = executor;
+        this.queueCapacity = queueCapacity;
+        dispatcher = new Thread(this::dispatch, "coveo-multisource-dispatcher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    /**
+     * Add a source, with a client of its own on the shared transport and governor
+     *
+     * @param weight share of the operations the source gets when every source has some queued, relative to the
+     *               weights of the others
+     * @return the client of the source, e.g. to configure it or to set its status
+     */
+    public synchronized CoveoPushAPI addSource(String organizationId, String sourceId, String accessToken, int weight) {
+        if (weight <= 0) {
+            throw new IllegalArgumentException("weight must be positive: " + weight);
+        }
+        if (sources.containsKey(sourceId)) {
+            throw new IllegalArgumentException("Source already added: " + sourceId);
+        }
+        CoveoPushAPI client = new CoveoPushAPI(organizationId, sourceId, accessToken, baseUrl, transport, governor);
+        sources.put(sourceId, new Source(sourceId, client, weight));
+        return client;
+    }
+
+    /**
+     * Change the share of a source, e.g. from what {@link #getStats(String)} shows
+     */
+    public synchronized void setWeight(String sourceId, int weight) {
+        if (weight <= 0) {
+            throw new IllegalArgumentException("weight must be positive: " + weight);
+        }
+        source(sourceId).weight = weight;
+    }
+
+    /**
+     * @return the client of a source
+     */
+    public synchronized CoveoPushAPI getClient(String sourceId) {
+        return source(sourceId).client;
+    }
+
+    /**
+     * @return the counters of a source, updated as its operations run
+     */
+    public synchronized SourceStats getStats(String sourceId) {
+        return source(sourceId).stats;
+    }
+
+    /**
+     * @return the number of operations queued for a source
+     */
+    public synchronized int getQueued(String sourceId) {
+        return source(sourceId).queue.size();
+    }
+
+    /**
+     * Queue an operation on a source, blocking while the source queue is full
+     *
+     * @return completed when the operation is done, exceptionally if it failed
+     */
+    public CompletableFuture<Void> submit(String sourceId, Operation operation) throws InterruptedException {
+        Task task = new Task(operation);
+        synchronized (this) {
+            Source source = source(sourceId);
+            while (!closed && source.queue.size() >= queueCapacity) {
+                wait();
+            }
+            if (closed) {
+                throw new IllegalStateException("MultiSourcePushClient is closed");
+            }
+            source.queue.add(task);
+            source.stats.submitted.incrementAndGet();
+            notifyAll();
+        }
+        return task.future;
+    }
+
+    /**
+     * Queue the PUT of a JSON Document on a source
+     *
+     * @param orderingId the orderingId of the document, or -1 to let the Push API use the push time
+     */
+    public CompletableFuture<Void> addOrUpdate(String sourceId, String json, String docId, long orderingId)
+            throws InterruptedException {
+        return submit(sourceId, client -> {
+            if (orderingId >= 0) {
+                client.putDocumentOnCoveo(json, docId, orderingId);
+            } else {
+                client.putDocumentOnCoveo(json, docId);
+            }
+        });
+    }
+
+    /**
+     * Queue the PUT of a JSON Document on a source, encoded when its turn comes
+     *
+     * @param orderingId the orderingId of the document, or -1 to let the Push API use the push time
+     */
+    public CompletableFuture<Void> addOrUpdate(String sourceId, DocumentEncoder.Content document, String docId,
+                                               long orderingId) throws InterruptedException {
+        return submit(sourceId, client -> client.putDocumentOnCoveo(document, docId, orderingId));
+    }
+
+    /**
+     * Queue the DELETE of a document on a source
+     */
+    public CompletableFuture<Void> delete(String sourceId, String docId) throws InterruptedException {
+        return submit(sourceId, client -> client.deleteDocumentOnCoveo(docId));
+    }
+
+    /**
+     * Run the queued operations, then stop
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+        }
+        try {
+            dispatcher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while finishing the queued operations");
+        } finally {
+            // interrupted, it is shut down without waiting for the running operations
+            executor.close();
+        }
+        LOGGER.info("Multi-source client done:" + System.lineSeparator() + this);
+    }
+
+    /**
+     * One line per source, with its weight, queue and counters
+     */
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (Source source : sources.values()) {
+            if (builder.length() > 0) {
+                builder.append(System.lineSeparator());
+            }
+            builder.append(source.sourceId).append(": weight=").append(source.weight)
+                    .append(", queued=").append(source.queue.size()).append(", ").append(source.stats);
+        }
+        return builder.toString();
+    }
+
+    private Source source(String sourceId) {
+        Source source = sources.get(sourceId);
+        if (source == null) {
+            throw new IllegalArgumentException("Unknown source: " + sourceId);
+        }
+        return source;
+    }
+
+    private void dispatch() {
+        try {
+            while (true) {
+                Source source;
+                Task task;
+                synchronized (this) {
+                    while ((source = next()) == null) {
+                        if (closed) {
+                            return;
+                        }
+                        wait();
+                    }
+                    task = source.queue.poll();
+                    // a producer may be waiting for room
+                    notifyAll();
+                }
+                // blocks while the executor runs its maximum of operations
+                Source chosen = source;
+                try {
+                    executor.execute(() -> run(chosen, task));
+                } catch (RuntimeException e) {
+                    // e.g. the executor was closed elsewhere: fail the operation, not the dispatcher, or the
+                    // producers would block for good once their queue is full
+                    source.stats.failed.incrementAndGet();
+                    LOGGER.log(Level.SEVERE, "Unable to run an operation on source " + source.sourceId, e);
+                    task.future.completeExceptionally(e);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Smooth weighted round-robin among the sources with queued operations: each gains its weight in credit, the
+     * richest is chosen and pays the total. Over any window, sources are chosen in proportion to their weights,
+     * interleaved rather than in bursts.
+     *
+     * @return the source to take an operation from, or null if every queue is empty
+     */
+    private Source next() {
+        Source best = null;
+        int total = 0;
+        for (Source source : sources.values()) {
+            if (source.queue.isEmpty()) {
+                // no credit is saved up while idle
+                source.current = 0;
+                continue;
+            }
+            source.current += source.weight;
+            total += source.weight;
+            if (best == null || source.current > best.current) {
+                best = source;
+            }
+        }
+        if (best != null) {
+            best.current -= total;
+        }
+        return best;
+    }
+
+    private static void run(Source source, Task task) {
+        SourceStats stats = source.stats;
+        stats.inFlight.incrementAndGet();
+        long start = System.nanoTime();
+        try {
+            task.operation.run(source.client);
+            stats.completed.incrementAndGet();
+            task.future.complete(null);
+        } catch (Exception e) {
+            stats.failed.incrementAndGet();
+            LOGGER.log(Level.SEVERE, "Operation on source " + source.sourceId + " failed", e);
+            task.future.completeExceptionally(e);
+        } finally {
+            stats.busyNanos.addAndGet(System.nanoTime() - start);
+            stats.inFlight.decrementAndGet();
+        }
+    }
+
+}
@@ -0,0 +1,336 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+
+/**
+ * Multi-core zlib compressor, in the manner of pigz.
+ * <p>
+ * The input is split into blocks that are deflated in parallel on a fork-join pool. Each block is primed with the
+ * last 32 KB of the previous block as a preset dictionary, so the compression ratio stays close to a single
+ * stream's, and ends with a sync flush so the raw deflate outputs can simply be concatenated. The Adler-32 of each
+ * block is computed with its compression, and the per-block checksums are combined into the zlib trailer.
+ * <p>
+ * The result is one ordinary zlib stream, accepted anywhere a {@link java.util.zip.DeflaterOutputStream} output
+ * is. For a given block size and level, the output does not depend on the number of threads.
+ */
+public class ParallelDeflater {
+
+    public static final int DEFAULT_BLOCK_SIZE = 128 * 1024;
+
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    private static final int ADLER_BASE = 65521;
+    // final, empty, fixed-Huffman deflate block that ends the stream
+    private static final byte[] FINAL_BLOCK = {0x03, 0x00};
+
+    private final ForkJoinPool pool;
+    private final int blockSize;
+    private final int level;
+
+    /**
+     * A compressor on the common fork-join pool, with the default block size and compression level
+     */
+    public ParallelDeflater() {
+        this(ForkJoinPool.commonPool(), DEFAULT_BLOCK_SIZE, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param pool      runs the block compressions
+     * @param blockSize size of the input blocks, at least 32 KB
+     * @param level     zlib compression level, 0-9 or {@link Deflater#DEFAULT_COMPRESSION}
+     */
+    public ParallelDeflater(ForkJoinPool pool, int blockSize, int level) {
+        if (blockSize < DICTIONARY_SIZE) {
+            throw new IllegalArgumentException("Block size must be at least " + DICTIONARY_SIZE + ": " + blockSize);
+        }
+        this.pool = pool;
+        this.blockSize = blockSize;
+        this.level = level;
+    }
+
+    /**
+     * @return an inputstream reading the zlib-compressed content of <code>in</code>. The source is read, and
+     * blocks are compressed ahead, as the returned stream is consumed. Closing it closes <code>in</code>.
+     */
+    public InputStream compress(InputStream in) {
+        return new ZlibStream(in, level);
+    }
+
+    /**
+     * @param level zlib compression level for this stream, instead of the compressor's
+     * @return an inputstream reading the zlib-compressed content of <code>in</code>, as {@link #compress(InputStream)}
+     */
+    public InputStream compress(InputStream in, int level) {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid compression level: " + level);
+        }
+        return new ZlibStream(in, level);
+    }
+
+    /**
+     * Compress an inputstream into an outputstream. Neither stream is closed.
+     *
+     * @return the number of compressed bytes written
+     */
+    public long compress(InputStream in, OutputStream out) throws IOException {
+        ZlibStream zlib = new ZlibStream(in, level);
+        long total = 0;
+        byte[] chunk;
+        while ((chunk = zlib.nextChunk()) != null) {
+            out.write(chunk);
+            total += chunk.length;
+        }
+        return total;
+    }
+
+    /**
+     * @return the number of blocks compressed at once
+     */
+    public int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    /**
+     * @return the CPU time the pool threads spent compressing the blocks of a stream returned by
+     * {@link #compress(InputStream)} so far, in nanoseconds; 0 for any other stream
+     */
+    static long blockCpuNanos(InputStream zlib) {
+        return zlib instanceof ZlibStream ? ((ZlibStream) zlib).blockCpuNanos : 0;
+    }
+
+    /**
+     * Compressed output of one block
+     */
+    private static class Block {
+        final byte[] output;
+        final long adler;
+        final int length;
+        final long cpuNanos;
+
+        Block(byte[] output, long adler, int length, long cpuNanos) {
+            this.output = output;
+            this.adler = adler;
+            this.length = length;
+            this.cpuNanos = cpuNanos;
+        }
+    }
+
+    private Block deflateBlock(byte[] data, int length, byte[] dictionary, int level) {
+        long start = CompressionStats.currentThreadCpuNanos();
+        Adler32 adler = new Adler32();
+        adler.update(data, 0, length);
+
+        // raw deflate: the zlib header and trailer are written around the blocks. Pooled deflaters are kept per
+        // level, as changing the level of a primed deflater corrupts its window. Pool threads must not block, so
+        // this borrows past the pool budget rather than wait
+        BufferPool buffers = BufferPool.getDefault();
+        Deflater deflater = buffers.borrowDeflater(level, true);
+        byte[] output = new byte[length + (length >> 3) + 64];
+        int written = 0;
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(data, 0, length);
+            while (true) {
+                int n = deflater.deflate(output, written, output.length - written, Deflater.SYNC_FLUSH);
+                written += n;
+                if (written < output.length) {
+                    // a sync flush that did not fill the buffer is complete
+                    break;
+                }
+                output = Arrays.copyOf(output, output.length * 2);
+            }
+        } finally {
+            buffers.releaseDeflater(deflater, level, true);
+        }
+        return new Block(Arrays.copyOf(output, written), adler.getValue(), length,
+                CompressionStats.currentThreadCpuNanos() - start);
+    }
+
+    /**
+     * zlib header for the compression level, without preset dictionary
+     */
+    private static byte[] header(int level) {
+        int flevel;
+        if (level == Deflater.DEFAULT_COMPRESSION || level == 6) {
+            flevel = 2;
+        } else if (level <= 1) {
+            flevel = 0;
+        } else if (level <= 5) {
+            flevel = 1;
+        } else {
+            flevel = 3;
+        }
+        int cmf = 0x78; // deflate, 32 KB window
+        int flg = flevel << 6;
+        flg += 31 - ((cmf << 8) + flg) % 31;
+        return new byte[]{(byte) cmf, (byte) flg};
+    }
+
+    /**
+     * Adler-32 of the concatenation of two sequences, from their checksums; as zlib's adler32_combine
+     *
+     * @param adler1 checksum of the first sequence
+     * @param adler2 checksum of the second sequence
+     * @param length2 length of the second sequence
+     */
+    static long adler32Combine(long adler1, long adler2, long length2) {
+        long rem = length2 % ADLER_BASE;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = (rem * sum1) % ADLER_BASE;
+        sum1 += (adler2 & 0xffff) + ADLER_BASE - 1;
+        sum2 += ((adler1 >>> 16) & 0xffff) + ((adler2 >>> 16) & 0xffff) + ADLER_BASE - rem;
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum2 >= ((long) ADLER_BASE << 1)) {
+            sum2 -= ((long) ADLER_BASE << 1);
+        }
+        if (sum2 >= ADLER_BASE) {
+            sum2 -= ADLER_BASE;
+        }
+        return sum1 | (sum2 << 16);
+    }
+
+    /**
+     * Reads the source a block at a time, keeps up to two blocks per pool thread compressing ahead, and hands
+     * out their output in order, between the zlib header and trailer.
+     */
+    private class ZlibStream extends InputStream {
+        private final InputStream source;
+        private final ArrayDeque<ForkJoinTask<Block>> window = new ArrayDeque<>();
+        private final int maxAhead = Math.max(2, pool.getParallelism() * 2);
+        private final int level;
+
+        private byte[] dictionary;
+        private boolean sourceDone;
+        private boolean trailerDone;
+        private long adler = 1;
+        private long blockCpuNanos;
+
+        private byte[] current;
+        private int position;
+
+        ZlibStream(InputStream source, int level) {
+            this.source = source;
+            this.level = level;
+            this.current = header(level);
+        }
+
+        /**
+         * @return the next piece of output, or null at the end of the stream
+         */
+        byte[] nextChunk() throws IOException {
+            if (current != null && position < current.length) {
+                byte[] rest = position == 0 ? current : Arrays.copyOfRange(current, position, current.length);
+                current = null;
+                position = 0;
+                return rest;
+            }
+            return advance() ? nextChunk() : null;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (current == null || position >= current.length) {
+                if (!advance()) {
+                    return -1;
+                }
+            }
+            int n = Math.min(len, current.length - position);
+            System.arraycopy(current, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (ForkJoinTask<Block> task : window) {
+                task.cancel(false);
+            }
+            window.clear();
+            source.close();
+        }
+
+        /**
+         * Move to the next piece of output
+         *
+         * @return false at the end of the stream
+         */
+        private boolean advance() throws IOException {
+            current = null;
+            position = 0;
+            fill();
+            if (!window.isEmpty()) {
+                Block block;
+                try {
+                    block = window.poll().join();
+                } catch (RuntimeException e) {
+                    throw new IOException("Block compression failed", e);
+                }
+                adler = adler32Combine(adler, block.adler, block.length);
+                blockCpuNanos += block.cpuNanos;
+                current = block.output;
+                fill();
+                return true;
+            }
+            if (!trailerDone) {
+                trailerDone = true;
+                current = new byte[]{FINAL_BLOCK[0], FINAL_BLOCK[1],
+                        (byte) (adler >>> 24), (byte) (adler >>> 16), (byte) (adler >>> 8), (byte) adler};
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Read and submit blocks until the window is full or the source is exhausted
+         */
+        private void fill() throws IOException {
+            while (!sourceDone && window.size() < maxAhead) {
+                byte[] data = new byte[blockSize];
+                int length = readFully(data);
+                if (length < blockSize) {
+                    sourceDone = true;
+                }
+                if (length == 0) {
+                    break;
+                }
+                byte[] blockDictionary = dictionary;
+                window.add(pool.submit(() -> deflateBlock(data, length, blockDictionary, level)));
+                dictionary = Arrays.copyOfRange(data, Math.max(0, length - DICTIONARY_SIZE), length);
+            }
+        }
+
+        private int readFully(byte[] data) throws IOException {
+            int length = 0;
+            while (length < data.length) {
+                int n = source.read(data, length, data.length - length);
+                if (n < 0) {
+                    break;
+                }
+                length += n;
+            }
+            return length;
+        }
+    }
+
+}
@@ -0,0 +1,29 @@
+/**
+ * A request got a response, but not the status code it expected, e.g. from {@link CoveoPushAPI}
+ */
+public class PushApiException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int statusCode;
+
+    public PushApiException(String message, int statusCode) {
+        super(message);
+        this.statusCode = statusCode;
+    }
+
+    /**
+     * @return the HTTP status of the response
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * @return true if sending the same request again cannot succeed: a client error other than 429 (throttled)
+     */
+    public boolean isPermanent() {
+        return statusCode >= 400 && statusCode < 500 && !RequestGovernor.isThrottled(statusCode);
+    }
+
+}
@@ -0,0 +1,246 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * In-process stand-in for the Push API and the S3 file container, for load and failure testing without a Coveo
+ * organization. Point a {@link CoveoPushAPI} at {@link #getBaseUrl()}.
+ * <p>
+ * It answers the source status, files, S3 PUT, document, delete, delete older than and batch endpoints with their
+ * success codes, after a random latency. A share of the requests can be throttled (429 with Retry-After) or failed
+ * (503 or 500), to exercise the client's retries. Request bodies are read and discarded.
+ */
+public class PushApiStandIn implements Closeable {
+
+    private static final Logger LOGGER =
+            Logger.getLogger(PushApiStandIn.class.getName());
+
+    // keeps the stand-in from competing with the client for allocation, in the same JVM
+    private static final ThreadLocal<byte[]> BUFFERS = ThreadLocal.withInitial(() -> new byte[StreamTransfer.BUFFER_SIZE]);
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final String baseUrl;
+
+    private volatile long minLatencyMillis;
+    private volatile long maxLatencyMillis;
+    private volatile double throttleRate;
+    private volatile double errorRate;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong documents = new AtomicLong();
+    private final AtomicLong deletes = new AtomicLong();
+    private final AtomicLong uploads = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+
+    /**
+     * Start a stand-in on a free port of the loopback interface
+     */
+    public PushApiStandIn() throws IOException {
+        this(0);
+    }
+
+    /**
+     * Start a stand-in on the loopback interface
+     *
+     * @param port the port to listen on, 0 for any free port
+     */
+    public PushApiStandIn(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1024);
+        AtomicInteger threads = new AtomicInteger();
+        executor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "push-api-stand-in-" + threads.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+        baseUrl = "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+        LOGGER.info("Push API stand-in listening on " + baseUrl);
+    }
+
+    /**
+     * @return the URL to give {@link CoveoPushAPI} as base URL
+     */
+    public String getBaseUrl() {
+        return baseUrl;
+    }
+
+    /**
+     * Delay every response by a random time between <code>minMillis</code> and <code>maxMillis</code>
+     */
+    public void setLatency(long minMillis, long maxMillis) {
+        if (minMillis < 0 || maxMillis < minMillis) {
+            throw new IllegalArgumentException("Invalid latency range: " + minMillis + " - " + maxMillis);
+        }
+        this.minLatencyMillis = minMillis;
+        this.maxLatencyMillis = maxMillis;
+    }
+
+    /**
+     * @param throttleRate share of the requests answered 429 Too Many Requests, from 0 to 1
+     */
+    public void setThrottleRate(double throttleRate) {
+        this.throttleRate = throttleRate;
+    }
+
+    /**
+     * @param errorRate share of the requests answered 503 or 500, from 0 to 1
+     */
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    /** @return the number of documents PUT one at a time */
+    public long getDocumentCount() {
+        return documents.get();
+    }
+
+    public long getDeleteCount() {
+        return deletes.get();
+    }
+
+    /** @return the number of files PUT on the S3 stand-in */
+    public long getUploadCount() {
+        return uploads.get();
+    }
+
+    public long getBatchCount() {
+        return batches.get();
+    }
+
+    /** @return the request body bytes received, documents and uploads included */
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    public long getThrottledCount() {
+        return throttled.get();
+    }
+
+    public long getErrorCount() {
+        return errors.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+        LOGGER.info("Push API stand-in stopped: " + this);
+    }
+
+    @Override
+    public String toString() {
+        return "requests=" + requests + ", documents=" + documents + ", deletes=" + deletes + ", uploads=" + uploads
+                + ", batches=" + batches + ", bytes=" + bytesReceived + ", throttled=" + throttled + ", errors=" + errors;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            requests.incrementAndGet();
+            long received = drain(exchange.getRequestBody());
+            bytesReceived.addAndGet(received);
+
+            long min = minLatencyMillis;
+            long max = maxLatencyMillis;
+            if (max > 0) {
+                Thread.sleep(min == max ? min : ThreadLocalRandom.current().nextLong(min, max + 1));
+            }
+
+            double roll = ThreadLocalRandom.current().nextDouble();
+            if (roll < throttleRate) {
+                throttled.incrementAndGet();
+                exchange.getResponseHeaders().add("Retry-After", "1");
+                respond(exchange, 429, "{\"message\":\"Too many requests\"}");
+                return;
+            }
+            if (roll < throttleRate + errorRate) {
+                errors.incrementAndGet();
+                respond(exchange, roll < throttleRate + errorRate / 2 ? 503 : 500, "{\"message\":\"Injected failure\"}");
+                return;
+            }
+
+            route(exchange);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Stand-in failed to answer " + exchange.getRequestURI(), e);
+            respond(exchange, 500, "{\"message\":\"" + e + "\"}");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void route(HttpExchange exchange) throws IOException {
+        String method = exchange.getRequestMethod();
+        String path = exchange.getRequestURI().getPath();
+
+        if (path.startsWith("/s3/") && method.equals("PUT")) {
+            uploads.incrementAndGet();
+            respond(exchange, 200, null);
+        } else if (path.endsWith("/files") && method.equals("POST")) {
+            String fileId = UUID.randomUUID().toString();
+            respond(exchange, 201, "{\"uploadUri\":\"" + baseUrl + "/s3/" + fileId + "\",\"fileId\":\"" + fileId
+                    + "\",\"requiredHeaders\":{\"x-amz-server-side-encryption\":\"AES256\",\"Content-Type\":\"application/octet-stream\"}}");
+        } else if (path.endsWith("/status") && method.equals("POST")) {
+            respond(exchange, 201, null);
+        } else if (path.endsWith("/documents/batch") && method.equals("PUT")) {
+            batches.incrementAndGet();
+            respond(exchange, 202, null);
+        } else if (path.endsWith("/documents/olderthan") && method.equals("DELETE")) {
+            respond(exchange, 202, null);
+        } else if (path.endsWith("/documents") && method.equals("PUT")) {
+            documents.incrementAndGet();
+            respond(exchange, 202, null);
+        } else if (path.endsWith("/documents") && method.equals("DELETE")) {
+            deletes.incrementAndGet();
+            respond(exchange, 202, null);
+        } else {
+            respond(exchange, 404, "{\"message\":\"No stand-in for " + method + " " + path + "\"}");
+        }
+    }
+
+    private static long drain(InputStream in) throws IOException {
+        byte[] buffer = BUFFERS.get();
+        long total = 0;
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            total += n;
+        }
+        return total;
+    }
+
+    private static void respond(HttpExchange exchange, int code, String body) throws IOException {
+        byte[] bytes = body == null ? new byte[0] : body.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0) {
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+        }
+        exchange.sendResponseHeaders(code, bytes.length == 0 ? -1 : bytes.length);
+        if (bytes.length > 0) {
+            exchange.getResponseBody().write(bytes);
+        }
+    }
+
+}
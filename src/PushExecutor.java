@@ -0,0 +1,182 @@
+import java.io.Closeable;
+import java.io.InterruptedIOException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the blocking push flow of each document (upload, then PUT) as a task, with at most <code>maxInFlight</code>
+ * tasks running at once; {@link #execute(Task)} blocks while that many are running, which throttles producers.
+ * <p>
+ * On Java 21 or later, each task gets its own virtual thread, so thousands of documents can wait on the network
+ * without a platform thread (and its stack) each. Before Java 21, or in {@link Mode#PLATFORM} mode, tasks run on a
+ * fixed pool of <code>maxInFlight</code> platform threads. Virtual threads are looked up by reflection, as the
+ * client is built for Java 11.
+ * <p>
+ * On Java 21 to 23, a virtual thread blocked inside a <code>synchronized</code> block pins its carrier thread. The
+ * client holds <code>java.util.concurrent</code> locks across network calls and pooled-memory waits instead; the
+ * monitors left only guard short bookkeeping, but for the back-pressure waits of {@link PushOutbox#sync(long)},
+ * {@link PushOutbox#awaitSent(long, long)} and {@link MultiSourcePushClient#submit}, which pin while they wait.
+ */
+public class PushExecutor implements Closeable {
+
+    public enum Mode {
+        /** virtual threads when the JVM has them, platform threads otherwise */
+        AUTO,
+        VIRTUAL,
+        PLATFORM
+    }
+
+    /**
+     * The push flow of a document
+     */
+    public interface Task {
+        void run() throws Exception;
+    }
+
+    private static final Logger LOGGER =
+            Logger.getLogger(PushExecutor.class.getName());
+
+    private final ExecutorService executor;
+    private final boolean virtual;
+    private final Semaphore inFlight;
+    private final int maxInFlight;
+    private final AtomicInteger failures = new AtomicInteger();
+
+    /**
+     * @param maxInFlight maximum number of tasks running at once
+     */
+    public PushExecutor(int maxInFlight) {
+        this(Mode.AUTO, maxInFlight);
+    }
+
+    /**
+     * @param mode        VIRTUAL fails if the JVM has no virtual threads
+     * @param maxInFlight maximum number of tasks running at once
+     */
+    public PushExecutor(Mode mode, int maxInFlight) {
+        this(mode, maxInFlight, "coveo-push-");
+    }
+
+    /**
+     * @param mode        VIRTUAL fails if the JVM has no virtual threads
+     * @param maxInFlight maximum number of tasks running at once
+     * @param threadName  prefix of the thread names, followed by a counter
+     */
+    public PushExecutor(Mode mode, int maxInFlight, String threadName) {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("maxInFlight must be positive: " + maxInFlight);
+        }
+        ExecutorService virtualExecutor = mode == Mode.PLATFORM ? null : newVirtualThreadExecutor(threadName);
+        if (virtualExecutor == null && mode == Mode.VIRTUAL) {
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or later, this is "
+                    + System.getProperty("java.version"));
+        }
+        if (virtualExecutor != null) {
+            executor = virtualExecutor;
+            virtual = true;
+        } else {
+            AtomicInteger count = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(maxInFlight, r -> {
+                Thread t = new Thread(r, threadName + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+            virtual = false;
+        }
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+    }
+
+    /**
+     * Run a task, waiting first while <code>maxInFlight</code> tasks are running. A task that fails is logged and
+     * counted; handle failures in the task to do more.
+     */
+    public void execute(Task task) throws InterruptedException {
+        inFlight.acquire();
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    failures.incrementAndGet();
+                    LOGGER.log(Level.SEVERE, "Push task failed", e);
+                } finally {
+                    inFlight.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            inFlight.release();
+            throw e;
+        }
+    }
+
+    /**
+     * @return true if tasks run on virtual threads
+     */
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * @return the number of tasks running
+     */
+    public int getInFlight() {
+        return maxInFlight - inFlight.availablePermits();
+    }
+
+    /**
+     * @return the number of tasks that threw
+     */
+    public int getFailureCount() {
+        return failures.get();
+    }
+
+    /**
+     * Wait for the running tasks, and stop
+     */
+    @Override
+    public void close() throws InterruptedIOException {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the push tasks");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return (virtual ? "virtual" : "platform") + " threads, " + getInFlight() + "/" + maxInFlight + " in flight";
+    }
+
+    /**
+     * @return <code>Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(threadName, 1).factory())</code>,
+     * or null if the JVM has no virtual threads
+     */
+    static ExecutorService newVirtualThreadExecutor(String threadName) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, threadName, 1L);
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            Method newExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) newExecutor.invoke(null, factory);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // before Java 21, or preview features disabled on Java 19 and 20
+            return null;
+        }
+    }
+
+}
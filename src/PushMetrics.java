@@ -0,0 +1,306 @@
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency, throughput and response codes of each {@link PushStage} of a client, kept in fixed-size counters so that
+ * recording allocates nothing. Each stage can be exposed as a JMX MXBean named
+ * <code>CoveoPushAPI:type=PushMetrics,source=&lt;sourceId&gt;,stage=&lt;stage&gt;</code>.
+ */
+public class PushMetrics implements PushMetricsListener {
+
+    public static final String JMX_DOMAIN = "CoveoPushAPI";
+
+    /**
+     * The JMX view of a stage
+     */
+    public interface StageMetricsMXBean {
+        long getCount();
+
+        long getErrorCount();
+
+        long getInFlight();
+
+        long getBytesSent();
+
+        long getBytesReceived();
+
+        /** compressed / original size, for COMPRESS */
+        double getCompressionRatio();
+
+        double getMeanLatencyMillis();
+
+        double getP50LatencyMillis();
+
+        double getP99LatencyMillis();
+
+        double getP999LatencyMillis();
+
+        double getMaxLatencyMillis();
+
+        /** number of final responses per HTTP status, "none" counting requests that received no response */
+        Map<String, Long> getResponseCodes();
+    }
+
+    /**
+     * Measurements of one stage
+     */
+    public static class StageMetrics implements StageMetricsMXBean {
+        // latency buckets by power of two microseconds: bucket i holds latencies below 2^i us, the last one the rest
+        private static final int BUCKETS = 40;
+        private static final int MAX_STATUS = 600;
+
+        private final AtomicLongArray latencyBuckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder latencyNanos = new LongAdder();
+        private final LongAccumulator maxLatencyNanos = new LongAccumulator(Math::max, 0);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder inFlight = new LongAdder();
+        private final LongAdder bytesSent = new LongAdder();
+        private final LongAdder bytesReceived = new LongAdder();
+        // index 0 counts requests without response
+        private final AtomicLongArray responseCodes = new AtomicLongArray(MAX_STATUS);
+
+        void record(long nanos) {
+            long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+            int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+            latencyBuckets.incrementAndGet(bucket);
+            latencyNanos.add(nanos);
+            maxLatencyNanos.accumulate(nanos);
+            count.increment();
+        }
+
+        @Override
+        public long getCount() {
+            return count.sum();
+        }
+
+        @Override
+        public long getErrorCount() {
+            return errors.sum();
+        }
+
+        @Override
+        public long getInFlight() {
+            return inFlight.sum();
+        }
+
+        @Override
+        public long getBytesSent() {
+            return bytesSent.sum();
+        }
+
+        @Override
+        public long getBytesReceived() {
+            return bytesReceived.sum();
+        }
+
+        @Override
+        public double getCompressionRatio() {
+            long original = bytesReceived.sum();
+            return original == 0 ? 0 : (double) bytesSent.sum() / original;
+        }
+
+        @Override
+        public double getMeanLatencyMillis() {
+            long n = count.sum();
+            return n == 0 ? 0 : latencyNanos.sum() / 1e6 / n;
+        }
+
+        @Override
+        public double getP50LatencyMillis() {
+            return percentileMillis(0.5);
+        }
+
+        @Override
+        public double getP99LatencyMillis() {
+            return percentileMillis(0.99);
+        }
+
+        @Override
+        public double getP999LatencyMillis() {
+            return percentileMillis(0.999);
+        }
+
+        @Override
+        public double getMaxLatencyMillis() {
+            return maxLatencyNanos.get() / 1e6;
+        }
+
+        @Override
+        public Map<String, Long> getResponseCodes() {
+            Map<String, Long> codes = new TreeMap<>();
+            for (int i = 0; i < MAX_STATUS; i++) {
+                long n = responseCodes.get(i);
+                if (n > 0) {
+                    codes.put(i == 0 ? "none" : String.valueOf(i), n);
+                }
+            }
+            return codes;
+        }
+
+        /**
+         * @return the upper bound of the histogram bucket holding the given percentile, capped by the max latency
+         */
+        private double percentileMillis(double percentile) {
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                total += latencyBuckets.get(i);
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(percentile * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += latencyBuckets.get(i);
+                if (seen >= rank) {
+                    return Math.min((1L << i) / 1e3, getMaxLatencyMillis());
+                }
+            }
+            return getMaxLatencyMillis();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("count=%d, errors=%d, in flight=%d, sent=%d, received=%d, mean=%.1f ms, p50=%.1f ms, p99=%.1f ms, max=%.1f ms, codes=%s",
+                    getCount(), getErrorCount(), getInFlight(), getBytesSent(), getBytesReceived(), getMeanLatencyMillis(),
+                    getP50LatencyMillis(), getP99LatencyMillis(), getMaxLatencyMillis(), getResponseCodes());
+        }
+    }
+
+    private final StageMetrics[] stages = new StageMetrics[PushStage.values().length];
+    // the metrics each registered MBean name belongs to, guarded by PushMetrics.class
+    private static final Map<ObjectName, PushMetrics> REGISTERED = new HashMap<>();
+
+    public PushMetrics() {
+        for (int i = 0; i < stages.length; i++) {
+            stages[i] = new StageMetrics();
+        }
+    }
+
+    /**
+     * @return the measurements of a stage. For COMPRESS, bytes received are the original bytes and bytes sent the
+     * compressed ones.
+     */
+    public StageMetrics getStage(PushStage stage) {
+        return stages[stage.ordinal()];
+    }
+
+    @Override
+    public void requestStarted(PushStage stage) {
+        stages[stage.ordinal()].inFlight.increment();
+    }
+
+    @Override
+    public void requestCompleted(PushStage stage, int statusCode, long latencyNanos, long bytesSent, long bytesReceived) {
+        StageMetrics metrics = stages[stage.ordinal()];
+        metrics.inFlight.decrement();
+        metrics.record(latencyNanos);
+        metrics.bytesSent.add(bytesSent);
+        metrics.bytesReceived.add(bytesReceived);
+        if (statusCode < 0 || statusCode >= 400) {
+            metrics.errors.increment();
+        }
+        metrics.responseCodes.incrementAndGet(statusCode > 0 && statusCode < StageMetrics.MAX_STATUS ? statusCode : 0);
+    }
+
+    @Override
+    public void compressionCompleted(long originalBytes, long compressedBytes, long nanos) {
+        StageMetrics metrics = stages[PushStage.COMPRESS.ordinal()];
+        metrics.record(nanos);
+        metrics.bytesReceived.add(originalBytes);
+        metrics.bytesSent.add(compressedBytes);
+    }
+
+    /**
+     * Register an MXBean per stage with the platform MBean server, in place of those of another client of the same
+     * source, e.g. one that was recreated: either every stage is registered, or none
+     *
+     * @param sourceId identifies the client in the MBean names
+     */
+    public void registerMBeans(String sourceId) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        List<ObjectName> names = new ArrayList<>();
+        for (PushStage stage : PushStage.values()) {
+            names.add(new ObjectName(JMX_DOMAIN + ":type=PushMetrics,source=" + ObjectName.quote(sourceId)
+                    + ",stage=" + stage.name()));
+        }
+        synchronized (PushMetrics.class) {
+            List<ObjectName> done = new ArrayList<>();
+            try {
+                for (PushStage stage : PushStage.values()) {
+                    ObjectName name = names.get(stage.ordinal());
+                    if (server.isRegistered(name)) {
+                        server.unregisterMBean(name);
+                        REGISTERED.remove(name);
+                    }
+                    server.registerMBean(getStage(stage), name);
+                    done.add(name);
+                }
+            } catch (JMException | RuntimeException e) {
+                for (ObjectName name : done) {
+                    try {
+                        server.unregisterMBean(name);
+                    } catch (JMException ignored) {
+                        // unregistered meanwhile
+                    }
+                }
+                throw e;
+            }
+            for (ObjectName name : done) {
+                REGISTERED.put(name, this);
+            }
+        }
+    }
+
+    /**
+     * Unregister the MXBeans registered by {@link #registerMBeans(String)}, but those another client has replaced
+     */
+    public void unregisterMBeans() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        synchronized (PushMetrics.class) {
+            Iterator<Map.Entry<ObjectName, PushMetrics>> entries = REGISTERED.entrySet().iterator();
+            while (entries.hasNext()) {
+                Map.Entry<ObjectName, PushMetrics> entry = entries.next();
+                if (entry.getValue() == this) {
+                    entries.remove();
+                    if (server.isRegistered(entry.getKey())) {
+                        server.unregisterMBean(entry.getKey());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * One line per stage that saw any activity
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (PushStage stage : PushStage.values()) {
+            StageMetrics metrics = getStage(stage);
+            if (metrics.getCount() == 0 && metrics.getInFlight() == 0) {
+                continue;
+            }
+            if (sb.length() > 0) {
+                sb.append(System.lineSeparator());
+            }
+            sb.append(stage).append(": ").append(metrics);
+        }
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,37 @@
+/**
+ * Receives the measurements of a {@link CoveoPushAPI}, e.g. to forward them to a monitoring system.
+ * <p>
+ * Listeners are called on the threads that send the requests, on the hot path: they must be thread-safe, return
+ * quickly, and should not allocate.
+ */
+public interface PushMetricsListener {
+
+    /**
+     * A request is about to be sent, retries included
+     */
+    default void requestStarted(PushStage stage) {
+    }
+
+    /**
+     * A request completed, after any retries
+     *
+     * @param statusCode    the HTTP status of the final response, or -1 if none was received
+     * @param latencyNanos  time from {@link #requestStarted(PushStage)} to the final response or failure
+     * @param bytesSent     size of the request body, 0 if none or unknown
+     * @param bytesReceived size of the response body
+     */
+    default void requestCompleted(PushStage stage, int statusCode, long latencyNanos, long bytesSent, long bytesReceived) {
+    }
+
+    /**
+     * Content was compressed for an upload
+     *
+     * @param originalBytes   size of the content
+     * @param compressedBytes size of the compressed content
+     * @param nanos           wall-clock time spent compressing, as a latency; the CPU time is in
+     *                        {@link CoveoPushAPI#getCompressionStats()}
+     */
+    default void compressionCompleted(long originalBytes, long compressedBytes, long nanos) {
+    }
+
+}
@@ -0,0 +1,824 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Durable, append-only journal of add/update and delete operations, drained into the Push API by a background
+ * sender, so that operations still queued when the JVM stops are sent when it starts again.
+ * <p>
+ * Producers append operations to memory-mapped segment files (<code>outbox-&lt;sequence&gt;.seg</code>) at memory
+ * speed. A sync thread forces the segments to disk every <code>syncIntervalMillis</code>, or as soon as a producer
+ * waits in {@link #sync(long)}, so that one fsync covers every operation appended meanwhile (group commit).
+ * <p>
+ * The sender only reads synced operations. It keeps up to <code>maxInFlight</code> of them in flight, never two for
+ * the same docId, sending the next one as soon as any completes, and moves a checkpoint
+ * (<code>outbox.checkpoint</code>) past the operations completed in order. An operation the Push API rejects as
+ * invalid (a 4xx response other than 429) is logged, written to <code>outbox.deadletter</code>, one JSON object per
+ * line, and counts as completed. Any other failure is retried with an increasing delay, while the operations after
+ * it go on; the checkpoint waits for it. Segments behind the checkpoint are deleted.
+ * <p>
+ * When an outbox is opened, its segments are scanned from the checkpoint. The first record with a bad length or
+ * checksum is a write torn by a crash and ends the journal. Everything after the checkpoint is sent again, so
+ * delivery is at least once: operations acknowledged after the last checkpoint write are sent twice.
+ */
+public class PushOutbox implements Closeable {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    public static final long DEFAULT_SYNC_INTERVAL_MILLIS = 10;
+    public static final int DEFAULT_MAX_IN_FLIGHT = 8;
+
+    private static final Logger LOGGER =
+            Logger.getLogger(PushOutbox.class.getName());
+
+    private static final String SEGMENT_PREFIX = "outbox-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String CHECKPOINT_FILE = "outbox.checkpoint";
+    private static final String DEAD_LETTER_FILE = "outbox.deadletter";
+
+    private static final int MAGIC = 0x434f4258; // "COBX"
+    private static final int CHECKPOINT_MAGIC = 0x434f4350; // "COCP"
+    private static final int VERSION = 1;
+
+    // segment header: magic, version, sequence
+    private static final int SEGMENT_HEADER_SIZE = 16;
+    // checkpoint: magic, version, position
+    private static final int CHECKPOINT_SIZE = 16;
+    private static final int C_POSITION = 8;
+
+    // record: body length and CRC32, then the body: type, orderingId, docId length, docId, JSON
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int BODY_HEADER_SIZE = 13;
+    // written instead of a record length when the next record does not fit; room for it is always kept
+    private static final int END_OF_SEGMENT = -1;
+    private static final int END_SIZE = 4;
+
+    private static final byte ADD_OR_UPDATE = 1;
+    private static final byte DELETE = 2;
+
+    private static final long MIN_RETRY_MILLIS = 1000;
+    private static final long MAX_RETRY_MILLIS = 60000;
+    // operations read ahead of the oldest one not completed, per operation in flight
+    private static final int READ_AHEAD = 64;
+    private static final int CHECKPOINT_EVERY = 1000;
+    private static final long CHECKPOINT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static class Segment {
+        final long sequence;
+        final File file;
+        final MappedByteBuffer buffer;
+
+        Segment(long sequence, File file, MappedByteBuffer buffer) {
+            this.sequence = sequence;
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    private static class Operation {
+        final byte type;
+        final long orderingId;
+        final String docId;
+        // dropped once the operation completed
+        String json;
+        // position of the record that follows
+        final long next;
+        // the state below is the sender's, but for the failure, set when the send completes
+        boolean completed;
+        int attempts;
+        long retryAt;
+        Throwable failure;
+
+        Operation(byte type, long orderingId, String docId, String json, long next) {
+            this.type = type;
+            this.orderingId = orderingId;
+            this.docId = docId;
+            this.json = json;
+            this.next = next;
+        }
+
+        @Override
+        public String toString() {
+            return (type == DELETE ? "delete of " : "addOrUpdate of ") + docId;
+        }
+    }
+
+    private final CoveoPushAPI coveoPushAPI;
+    private final File directory;
+    private final int segmentSize;
+    private final long syncIntervalMillis;
+    private final int maxInFlight;
+
+    private final MappedByteBuffer checkpoint;
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private final CRC32 crc = new CRC32();
+
+    // positions are (segment sequence << 32 | offset in the segment), so that they compare across segments
+    private Segment writeSegment;
+    private ByteBuffer writer;
+    private long writtenPosition;
+    private long syncedPosition;
+    private long checkpointPosition;
+    private long persistedCheckpoint;
+    // next operation for the sender to read
+    private long readPosition;
+    private int syncWaiters;
+    // operations whose send completed, for the sender to handle
+    private final ArrayDeque<Operation> completions = new ArrayDeque<>();
+
+    private long appended;
+    private long sent;
+    private long pending;
+    private long failures;
+    private long deadLetters;
+    private long syncs;
+    private boolean closed;
+
+    private final Thread syncThread;
+    private final Thread sendThread;
+
+    public PushOutbox(CoveoPushAPI coveoPushAPI, File directory) throws IOException {
+        this(coveoPushAPI, directory, DEFAULT_SEGMENT_SIZE, DEFAULT_SYNC_INTERVAL_MILLIS, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * Open an outbox, replaying the operations it holds after its checkpoint
+     *
+     * @param coveoPushAPI       client the operations are sent with
+     * @param directory          directory of the segments and the checkpoint, created if needed
+     * @param segmentSize        size of a segment file, in bytes; it bounds the size of an operation
+     * @param syncIntervalMillis maximum time an appended operation waits before it is forced to disk
+     * @param maxInFlight        maximum number of operations sent concurrently
+     */
+    public PushOutbox(CoveoPushAPI coveoPushAPI, File directory, int segmentSize, long syncIntervalMillis,
+                      int maxInFlight) throws IOException {
+        if (segmentSize < SEGMENT_HEADER_SIZE + RECORD_HEADER_SIZE + BODY_HEADER_SIZE + END_SIZE) {
+            throw new IllegalArgumentException("segmentSize is too small: " + segmentSize);
+        }
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("maxInFlight must be positive: " + maxInFlight);
+        }
+        this.coveoPushAPI = coveoPushAPI;
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.syncIntervalMillis = syncIntervalMillis;
+        this.maxInFlight = maxInFlight;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create the outbox directory " + directory);
+        }
+        checkpoint = mapCheckpoint(new File(directory, CHECKPOINT_FILE));
+        recover();
+
+        syncThread = new Thread(this::syncLoop, "coveo-outbox-sync");
+        syncThread.setDaemon(true);
+        syncThread.start();
+        sendThread = new Thread(this::sendLoop, "coveo-outbox-sender");
+        sendThread.setDaemon(true);
+        sendThread.start();
+    }
+
+    /**
+     * Append an add (or update) of a document, with the current time as orderingId, so that a replayed operation
+     * does not override a newer one
+     *
+     * @param json  the JSON Document, as passed to {@link CoveoPushAPI#putDocumentOnCoveo(String, String)}
+     * @param docId the unique Coveo documentId / URI
+     * @return the position of the operation, for {@link #sync(long)} and {@link #awaitSent(long, long)}
+     */
+    public long addOrUpdate(String json, String docId) throws IOException {
+        return addOrUpdate(json, docId, System.currentTimeMillis());
+    }
+
+    /**
+     * Append an add (or update) of a document
+     *
+     * @param json       the JSON Document
+     * @param docId      the unique Coveo documentId / URI
+     * @param orderingId the orderingId of the document, or -1 to let the Push API use the push time
+     * @return the position of the operation
+     */
+    public long addOrUpdate(String json, String docId, long orderingId) throws IOException {
+        return append(ADD_OR_UPDATE, orderingId, docId, json);
+    }
+
+    /**
+     * Append a delete of a document
+     *
+     * @param docId the Coveo documentId / URI
+     * @return the position of the operation
+     */
+    public long delete(String docId) throws IOException {
+        return append(DELETE, -1, docId, "");
+    }
+
+    /**
+     * Wait until the operations up to a position are on disk
+     */
+    public synchronized void sync(long position) throws InterruptedException {
+        syncWaiters++;
+        notifyAll();
+        try {
+            while (syncedPosition < position && syncThread.isAlive()) {
+                wait(syncIntervalMillis);
+            }
+        } finally {
+            syncWaiters--;
+        }
+    }
+
+    /**
+     * Wait until every operation appended so far is on disk
+     */
+    public void sync() throws InterruptedException {
+        long position;
+        synchronized (this) {
+            position = writtenPosition;
+        }
+        sync(position);
+    }
+
+    /**
+     * Wait until the operations up to a position are acknowledged by the Push API, or dead-lettered
+     *
+     * @return false if the timeout elapsed first
+     */
+    public synchronized boolean awaitSent(long position, long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (checkpointPosition < position) {
+            long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (left <= 0 || closed) {
+                return false;
+            }
+            wait(left);
+        }
+        return true;
+    }
+
+    /**
+     * Wait until every operation appended so far is acknowledged by the Push API, or dead-lettered
+     *
+     * @return false if the timeout elapsed first
+     */
+    public boolean awaitEmpty(long timeoutMillis) throws InterruptedException {
+        long position;
+        synchronized (this) {
+            position = writtenPosition;
+        }
+        return awaitSent(position, timeoutMillis);
+    }
+
+    /**
+     * @return number of operations appended since the outbox was opened
+     */
+    public synchronized long getAppendedCount() {
+        return appended;
+    }
+
+    /**
+     * @return number of operations acknowledged by the Push API since the outbox was opened
+     */
+    public synchronized long getSentCount() {
+        return sent;
+    }
+
+    /**
+     * @return number of operations not acknowledged yet, replayed ones included
+     */
+    public synchronized long getPendingCount() {
+        return pending;
+    }
+
+    /**
+     * @return number of failed sends, each of which was retried
+     */
+    public synchronized long getFailureCount() {
+        return failures;
+    }
+
+    /**
+     * @return number of operations rejected by the Push API and written to the dead letter file
+     */
+    public synchronized long getDeadLetterCount() {
+        return deadLetters;
+    }
+
+    /**
+     * @return number of times the segments were forced to disk
+     */
+    public synchronized long getSyncCount() {
+        return syncs;
+    }
+
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Stop appending and sending. Appended operations are forced to disk; those not acknowledged yet are sent when
+     * the outbox is opened again. Use {@link #awaitEmpty(long)} first to send them now.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+        }
+        try {
+            syncThread.join();
+            sendThread.interrupt();
+            sendThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while closing the outbox");
+        }
+        persistCheckpoint();
+        LOGGER.info("Closed outbox " + directory + ": " + this);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "appended=" + appended + ", sent=" + sent + ", pending=" + pending + ", failures=" + failures
+                + ", dead letters=" + deadLetters + ", syncs=" + syncs + ", segments=" + segments.size();
+    }
+
+    private long append(byte type, long orderingId, String docId, String json) throws IOException {
+        byte[] id = docId.getBytes(StandardCharsets.UTF_8);
+        byte[] data = json.getBytes(StandardCharsets.UTF_8);
+        int length = BODY_HEADER_SIZE + id.length + data.length;
+        if ((long) SEGMENT_HEADER_SIZE + RECORD_HEADER_SIZE + length + END_SIZE > segmentSize) {
+            throw new IllegalArgumentException("Operation on " + docId + " is larger than the outbox segment size of "
+                    + segmentSize + " bytes");
+        }
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("PushOutbox is closed");
+            }
+            if ((long) writer.position() + RECORD_HEADER_SIZE + length + END_SIZE > writer.capacity()) {
+                writer.putInt(END_OF_SEGMENT);
+                writeSegment = createSegment(writeSegment.sequence + 1);
+                writer = writeSegment.buffer.duplicate();
+                writer.position(SEGMENT_HEADER_SIZE);
+            }
+            int start = writer.position();
+            writer.position(start + RECORD_HEADER_SIZE);
+            writer.put(type).putLong(orderingId).putInt(id.length).put(id).put(data);
+
+            ByteBuffer body = writeSegment.buffer.duplicate();
+            body.limit(writer.position()).position(start + RECORD_HEADER_SIZE);
+            crc.reset();
+            crc.update(body);
+            writer.putInt(start + 4, (int) crc.getValue());
+            writer.putInt(start, length);
+
+            if (writtenPosition == syncedPosition) {
+                // wake the sync thread up
+                notifyAll();
+            }
+            writtenPosition = position(writeSegment.sequence, writer.position());
+            appended++;
+            pending++;
+            return writtenPosition;
+        }
+    }
+
+    /**
+     * Force appended operations to disk, batching those appended within the sync interval, until closed
+     */
+    private void syncLoop() {
+        while (true) {
+            long target;
+            List<MappedByteBuffer> dirty = new ArrayList<>();
+            synchronized (this) {
+                try {
+                    while (!closed && writtenPosition == syncedPosition) {
+                        wait();
+                    }
+                    if (!closed && syncWaiters == 0) {
+                        // let more operations join this sync
+                        wait(syncIntervalMillis);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (writtenPosition == syncedPosition) {
+                    if (closed) {
+                        return;
+                    }
+                    continue;
+                }
+                target = writtenPosition;
+                for (Segment segment : segments.subMap(sequence(syncedPosition), true, sequence(target), true).values()) {
+                    dirty.add(segment.buffer);
+                }
+            }
+            for (MappedByteBuffer buffer : dirty) {
+                buffer.force();
+            }
+            synchronized (this) {
+                syncedPosition = target;
+                syncs++;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Send synced operations, moving the checkpoint past those completed in order, until closed
+     */
+    private void sendLoop() {
+        // operations read and not behind the checkpoint yet, in order
+        ArrayDeque<Operation> window = new ArrayDeque<>();
+        // docIds of the operations sent and not completed
+        Set<String> inFlight = new HashSet<>();
+        PriorityQueue<Operation> retries = new PriorityQueue<>(Comparator.comparingLong(operation -> operation.retryAt));
+        Operation blocked = null;
+        int unpersisted = 0;
+        long persistedAt = System.nanoTime();
+        try {
+            while (true) {
+                List<Operation> completed;
+                synchronized (this) {
+                    completed = new ArrayList<>(completions);
+                    completions.clear();
+                }
+                for (Operation operation : completed) {
+                    if (operation.failure == null || deadLetter(operation)) {
+                        operation.completed = true;
+                        operation.json = null;
+                        inFlight.remove(operation.docId);
+                    } else {
+                        retry(operation);
+                        retries.add(operation);
+                    }
+                }
+
+                // move the checkpoint past the operations completed in order
+                while (!window.isEmpty() && window.peekFirst().completed) {
+                    Operation done = window.removeFirst();
+                    synchronized (this) {
+                        checkpointPosition = done.next;
+                        notifyAll();
+                    }
+                    unpersisted++;
+                }
+                if (unpersisted > 0 && (window.isEmpty() || unpersisted >= CHECKPOINT_EVERY
+                        || System.nanoTime() - persistedAt >= CHECKPOINT_INTERVAL_NANOS)) {
+                    // also when idle, to make the checkpoint durable before waiting
+                    persistCheckpoint();
+                    unpersisted = 0;
+                    persistedAt = System.nanoTime();
+                }
+
+                long now = System.nanoTime();
+                while (!retries.isEmpty() && retries.peek().retryAt - now <= 0) {
+                    send(retries.poll());
+                }
+
+                // keep maxInFlight operations in flight, whatever the oldest one is waiting for
+                while (inFlight.size() < maxInFlight && window.size() < maxInFlight * READ_AHEAD) {
+                    Operation operation = blocked != null ? blocked : read();
+                    if (operation == null) {
+                        break;
+                    }
+                    if (inFlight.contains(operation.docId)) {
+                        // keep the operations on a document in order
+                        blocked = operation;
+                        break;
+                    }
+                    blocked = null;
+                    inFlight.add(operation.docId);
+                    window.addLast(operation);
+                    send(operation);
+                }
+
+                synchronized (this) {
+                    if (closed) {
+                        return;
+                    }
+                    boolean canRead = inFlight.size() < maxInFlight && window.size() < maxInFlight * READ_AHEAD
+                            && (blocked != null ? !inFlight.contains(blocked.docId) : readPosition < syncedPosition);
+                    if (completions.isEmpty() && !canRead) {
+                        // woken up by a completion, a sync or close; 0 waits without a timeout
+                        wait(retries.isEmpty() ? 0
+                                : Math.max(1, TimeUnit.NANOSECONDS.toMillis(retries.peek().retryAt - System.nanoTime())));
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            // closed
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.SEVERE, "Outbox sender stopped", e);
+        }
+    }
+
+    private void send(Operation operation) {
+        CompletableFuture<Void> result;
+        if (operation.type == DELETE) {
+            result = coveoPushAPI.deleteDocumentOnCoveoAsync(operation.docId);
+        } else {
+            result = coveoPushAPI.putDocumentOnCoveoAsync(operation.json, operation.docId, operation.orderingId);
+        }
+        result.whenComplete((ignored, failure) -> {
+            synchronized (this) {
+                operation.failure = failure instanceof CompletionException && failure.getCause() != null
+                        ? failure.getCause() : failure;
+                if (failure == null) {
+                    sent++;
+                    pending--;
+                }
+                completions.add(operation);
+                notifyAll();
+            }
+        });
+    }
+
+    /**
+     * Schedule a failed operation to be sent again, with an increasing delay
+     */
+    private void retry(Operation operation) {
+        long delay = Math.min(MAX_RETRY_MILLIS, MIN_RETRY_MILLIS << Math.min(operation.attempts++, 16));
+        operation.retryAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+        synchronized (this) {
+            failures++;
+        }
+        LOGGER.log(Level.WARNING, "Unable to send the " + operation + ", retrying in " + delay + " ms", operation.failure);
+    }
+
+    /**
+     * Append an operation the Push API rejected to the dead letter file, forced to disk before the checkpoint may
+     * move past it
+     *
+     * @return false if the failure may be transient, or the operation could not be written
+     */
+    private boolean deadLetter(Operation operation) {
+        if (!(operation.failure instanceof PushApiException) || !((PushApiException) operation.failure).isPermanent()) {
+            return false;
+        }
+        int statusCode = ((PushApiException) operation.failure).getStatusCode();
+        File file = new File(directory, DEAD_LETTER_FILE);
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            DocumentEncoder.encode(letter -> letter
+                    .field("type", operation.type == DELETE ? "delete" : "addOrUpdate")
+                    .field("docId", operation.docId)
+                    .field("orderingId", operation.orderingId)
+                    .field("statusCode", statusCode)
+                    .field("error", operation.failure.getMessage())
+                    // as appended, as an invalid document may not even be JSON
+                    .field("document", operation.json), out);
+            out.write('\n');
+            out.getFD().sync();
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Unable to write the rejected " + operation + " to " + file, e);
+            return false;
+        }
+        synchronized (this) {
+            deadLetters++;
+            pending--;
+        }
+        LOGGER.log(Level.SEVERE, "The Push API rejected the " + operation + ", skipped it and wrote it to " + file,
+                operation.failure);
+        return true;
+    }
+
+    /**
+     * @return the next synced operation, skipping to the next segment at the end of one, or <code>null</code> if
+     * there is none yet
+     */
+    private synchronized Operation read() {
+        long position = readPosition;
+        while (position < syncedPosition) {
+            ByteBuffer buffer = segments.get(sequence(position)).buffer.duplicate();
+            int offset = offset(position);
+            int length = buffer.getInt(offset);
+            if (length == END_OF_SEGMENT) {
+                position = position(sequence(position) + 1, SEGMENT_HEADER_SIZE);
+                readPosition = position;
+                continue;
+            }
+            buffer.position(offset + RECORD_HEADER_SIZE);
+            byte type = buffer.get();
+            long orderingId = buffer.getLong();
+            byte[] id = new byte[buffer.getInt()];
+            buffer.get(id);
+            byte[] data = new byte[length - BODY_HEADER_SIZE - id.length];
+            buffer.get(data);
+            readPosition = position(sequence(position), buffer.position());
+            return new Operation(type, orderingId, new String(id, StandardCharsets.UTF_8),
+                    new String(data, StandardCharsets.UTF_8), readPosition);
+        }
+        return null;
+    }
+
+    /**
+     * Write the checkpoint to disk, then delete the segments behind it
+     */
+    private void persistCheckpoint() {
+        long position;
+        synchronized (this) {
+            position = checkpointPosition;
+            if (position == persistedCheckpoint) {
+                return;
+            }
+        }
+        checkpoint.putLong(C_POSITION, position);
+        checkpoint.force();
+        List<Segment> done = new ArrayList<>();
+        synchronized (this) {
+            persistedCheckpoint = position;
+            Iterator<Segment> behind = segments.headMap(sequence(position)).values().iterator();
+            while (behind.hasNext()) {
+                done.add(behind.next());
+                behind.remove();
+            }
+        }
+        for (Segment segment : done) {
+            if (!segment.file.delete()) {
+                LOGGER.warning("Unable to delete outbox segment " + segment.file);
+            }
+        }
+    }
+
+    /**
+     * Open the segments from the checkpoint on, find the end of the journal and count the operations to replay
+     */
+    private void recover() throws IOException {
+        long position = checkpoint.getLong(C_POSITION);
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        SortedMap<Long, File> found = new TreeMap<>();
+        for (File file : files == null ? new File[0] : files) {
+            String name = file.getName();
+            found.put(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()), 16), file);
+        }
+        for (Map.Entry<Long, File> entry : found.entrySet()) {
+            if (position >= 0 && entry.getKey() < sequence(position)) {
+                // left behind by a crash between the checkpoint write and the delete
+                entry.getValue().delete();
+            } else {
+                segments.put(entry.getKey(), openSegment(entry.getKey(), entry.getValue()));
+            }
+        }
+        if (segments.isEmpty()) {
+            position = position(createSegment(position >= 0 ? sequence(position) : 0).sequence, SEGMENT_HEADER_SIZE);
+        } else if (position < 0 || sequence(position) < segments.firstKey()) {
+            position = position(segments.firstKey(), SEGMENT_HEADER_SIZE);
+        }
+
+        Segment last = segments.lastEntry().getValue();
+        long replay = 0;
+        for (Segment segment : new ArrayList<>(segments.values())) {
+            int offset = segment.sequence == sequence(position) ? offset(position) : SEGMENT_HEADER_SIZE;
+            int next;
+            while ((next = nextRecord(segment.buffer, offset)) > 0) {
+                offset = next;
+                replay++;
+            }
+            if (next == 0) {
+                if (segment != last) {
+                    LOGGER.warning("Outbox segment " + segment.file + " is truncated at offset " + offset);
+                    segment.buffer.putInt(offset, END_OF_SEGMENT);
+                } else {
+                    clear(segment.buffer, offset);
+                }
+                segment.buffer.force();
+            }
+            if (segment == last) {
+                if (next < 0) {
+                    writeSegment = createSegment(segment.sequence + 1);
+                    offset = SEGMENT_HEADER_SIZE;
+                } else {
+                    writeSegment = segment;
+                }
+                writer = writeSegment.buffer.duplicate();
+                writer.position(offset);
+            }
+        }
+
+        writtenPosition = position(writeSegment.sequence, writer.position());
+        syncedPosition = writtenPosition;
+        checkpointPosition = position;
+        persistedCheckpoint = position;
+        readPosition = position;
+        checkpoint.putLong(C_POSITION, position);
+        checkpoint.force();
+        pending = replay;
+        if (replay > 0) {
+            LOGGER.info("Replaying " + replay + " operations from outbox " + directory);
+        }
+    }
+
+    /**
+     * @return the offset of the record after a valid one, -1 at the end of a sealed segment, or 0 if there is no
+     * valid record at the offset
+     */
+    private int nextRecord(ByteBuffer buffer, int offset) {
+        if (offset + RECORD_HEADER_SIZE > buffer.capacity()) {
+            return 0;
+        }
+        int length = buffer.getInt(offset);
+        if (length == END_OF_SEGMENT) {
+            return -1;
+        }
+        if (length < BODY_HEADER_SIZE || (long) offset + RECORD_HEADER_SIZE + length + END_SIZE > buffer.capacity()) {
+            return 0;
+        }
+        int end = offset + RECORD_HEADER_SIZE + length;
+        ByteBuffer body = buffer.duplicate();
+        body.limit(end).position(offset + RECORD_HEADER_SIZE);
+        crc.reset();
+        crc.update(body);
+        if ((int) crc.getValue() != buffer.getInt(offset + 4)) {
+            return 0;
+        }
+        int idLength = buffer.getInt(offset + RECORD_HEADER_SIZE + 9);
+        if (idLength < 0 || idLength > length - BODY_HEADER_SIZE) {
+            return 0;
+        }
+        return end;
+    }
+
+    /**
+     * Zero a torn write, so that it cannot be mistaken for records once new ones are appended before it
+     */
+    private static void clear(ByteBuffer buffer, int offset) {
+        for (int i = offset; i < buffer.capacity(); i++) {
+            if (buffer.get(i) != 0) {
+                buffer.put(i, (byte) 0);
+            }
+        }
+    }
+
+    private Segment createSegment(long sequence) throws IOException {
+        File file = new File(directory, String.format("%s%016x%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX));
+        MappedByteBuffer buffer;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(0);
+            raf.setLength(segmentSize);
+            // the mapping stays valid once the file is closed
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putLong(8, sequence);
+        Segment segment = new Segment(sequence, file, buffer);
+        segments.put(sequence, segment);
+        return segment;
+    }
+
+    private static Segment openSegment(long sequence, File file) throws IOException {
+        MappedByteBuffer buffer;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            if (raf.length() < SEGMENT_HEADER_SIZE || raf.length() > Integer.MAX_VALUE) {
+                throw new IOException("Not an outbox segment: " + file);
+            }
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+        }
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || buffer.getLong(8) != sequence) {
+            throw new IOException("Not an outbox segment: " + file);
+        }
+        return new Segment(sequence, file, buffer);
+    }
+
+    private static MappedByteBuffer mapCheckpoint(File file) throws IOException {
+        MappedByteBuffer buffer;
+        boolean exists;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            exists = raf.length() >= CHECKPOINT_SIZE;
+            raf.setLength(CHECKPOINT_SIZE);
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, CHECKPOINT_SIZE);
+        }
+        if (!exists) {
+            buffer.putInt(0, CHECKPOINT_MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putLong(C_POSITION, -1);
+            buffer.force();
+        } else if (buffer.getInt(0) != CHECKPOINT_MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Not an outbox checkpoint: " + file);
+        }
+        return buffer;
+    }
+
+    private static long position(long sequence, int offset) {
+        return sequence << 32 | offset;
+    }
+
+    private static long sequence(long position) {
+        return position >>> 32;
+    }
+
+    private static int offset(long position) {
+        return (int) position;
+    }
+
+}
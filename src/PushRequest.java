@@ -0,0 +1,84 @@
+import java.net.URI;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An HTTP request sent through a {@link PushTransport}
+ */
+public class PushRequest {
+
+    private final String method;
+    private final URI uri;
+    private final Map<String, String> headers = new LinkedHashMap<>();
+    private RequestBody body;
+    private Duration timeout;
+
+    public PushRequest(String method, URI uri) {
+        this.method = method;
+        this.uri = uri;
+    }
+
+    /**
+     * Add a header to the request
+     *
+     * @return this request
+     */
+    public PushRequest header(String name, String value) {
+        headers.put(name, value);
+        return this;
+    }
+
+    /**
+     * Set the body of the request; requests without a body are sent empty
+     *
+     * @return this request
+     */
+    public PushRequest body(RequestBody body) {
+        this.body = body;
+        return this;
+    }
+
+    /**
+     * Set how long to wait for the response; <code>null</code> waits forever
+     *
+     * @return this request
+     */
+    public PushRequest timeout(Duration timeout) {
+        this.timeout = timeout;
+        return this;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public URI getUri() {
+        return uri;
+    }
+
+    public Map<String, String> getHeaders() {
+        return Collections.unmodifiableMap(headers);
+    }
+
+    /**
+     * @return the body, or <code>null</code> for an empty request
+     */
+    public RequestBody getBody() {
+        return body;
+    }
+
+    /**
+     * @return the response timeout, or <code>null</code> to wait forever
+     */
+    public Duration getTimeout() {
+        return timeout;
+    }
+
+    @Override
+    public String toString() {
+        return method + " " + uri;
+    }
+
+}
@@ -0,0 +1,90 @@
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An HTTP response received through a {@link PushTransport}
+ */
+public class PushResponse {
+
+    private final int statusCode;
+    private final Map<String, List<String>> headers;
+    private final String body;
+    private final long bodyLength;
+
+    /**
+     * A response whose body was received as UTF-8
+     */
+    public PushResponse(int statusCode, Map<String, List<String>> headers, String body) {
+        this(statusCode, headers, body, utf8Length(body));
+    }
+
+    /**
+     * @param bodyLength the number of bytes of the body, as received
+     */
+    public PushResponse(int statusCode, Map<String, List<String>> headers, String body, long bodyLength) {
+        this.statusCode = statusCode;
+        // header names are case-insensitive
+        this.headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        this.headers.putAll(headers);
+        this.body = body;
+        this.bodyLength = bodyLength;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * @return the first value of a header, or <code>null</code> if the response does not have it
+     */
+    public String getHeader(String name) {
+        List<String> values = headers.get(name);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    public Map<String, List<String>> getHeaders() {
+        return Collections.unmodifiableMap(headers);
+    }
+
+    /**
+     * @return the response body, empty if there is none
+     */
+    public String getBody() {
+        return body;
+    }
+
+    /**
+     * @return the size of the response body in bytes, as received
+     */
+    public long getBodyLength() {
+        return bodyLength;
+    }
+
+    /**
+     * @return the size of the UTF-8 encoding of a string, without encoding it
+     */
+    private static long utf8Length(String s) {
+        if (s == null) {
+            return 0;
+        }
+        long length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                // unpaired surrogates are encoded as '?'
+                length += Character.isSurrogate(c) ? 1 : 3;
+            }
+        }
+        return length;
+    }
+
+}
@@ -0,0 +1,13 @@
+/**
+ * The stages of pushing content, as measured by {@link PushMetrics}. All but COMPRESS are Push API or S3 requests.
+ */
+public enum PushStage {
+    SOURCE_STATUS,
+    GET_S3_FILE,
+    COMPRESS,
+    PUT_S3,
+    PUT_DOCUMENT,
+    DELETE_DOCUMENT,
+    DELETE_OLDER_THAN,
+    PUSH_BATCH
+}
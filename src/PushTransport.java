@@ -0,0 +1,31 @@
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Sends the HTTP requests of {@link CoveoPushAPI}, to the Push API as well as to AWS S3.
+ * <p>
+ * Implementations must be thread-safe, as a single transport is meant to be shared by every call of a client,
+ * and by several clients.
+ */
+public interface PushTransport {
+
+    /**
+     * Send a request and wait for its response
+     *
+     * @param request
+     * @return the response, whatever its status code
+     * @throws IOException if the request could not be sent or no response was received
+     * @throws InterruptedException
+     */
+    PushResponse send(PushRequest request) throws IOException, InterruptedException;
+
+    /**
+     * Send a request without blocking the calling thread
+     *
+     * @param request
+     * @return a future completed with the response, whatever its status code, or exceptionally if the request
+     * could not be sent or no response was received
+     */
+    CompletableFuture<PushResponse> sendAsync(PushRequest request);
+
+}
@@ -0,0 +1,154 @@
+import java.io.*;
+
+/**
+ * The body of a {@link PushRequest}. Bodies are read through {@link #open()}, so the transport can stream them
+ * without holding them in memory.
+ */
+public abstract class RequestBody {
+
+    /**
+     * Supplies the content of a streamed body
+     */
+    public interface StreamSupplier {
+        InputStream open() throws IOException;
+    }
+
+    /**
+     * Writes the content of a body
+     */
+    public interface BodyWriter {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * @return the length of the body in bytes, or -1 if it is unknown and must be sent chunked
+     */
+    public abstract long contentLength();
+
+    /**
+     * @return a new stream over the body content, closed by the caller
+     */
+    public abstract InputStream open() throws IOException;
+
+    /**
+     * @return true if {@link #open()} may be called more than once, e.g. to retry the request
+     */
+    public abstract boolean isRepeatable();
+
+    /**
+     * A body held in memory
+     */
+    public static RequestBody ofBytes(byte[] bytes) {
+        return ofBytes(bytes, 0, bytes.length);
+    }
+
+    /**
+     * A body held in a range of an array, which must not change while the request may be sent
+     */
+    public static RequestBody ofBytes(byte[] bytes, int offset, int length) {
+        return new RequestBody() {
+            @Override
+            public long contentLength() {
+                return length;
+            }
+
+            @Override
+            public InputStream open() {
+                return new ByteArrayInputStream(bytes, offset, length);
+            }
+
+            @Override
+            public boolean isRepeatable() {
+                return true;
+            }
+        };
+    }
+
+    /**
+     * A body written once into memory, when this is called, and sent from there without another copy, so that its
+     * length is known and the request can be retried. The whole body is held in memory until the request is done:
+     * use {@link #ofStream(StreamSupplier, long)} for large content.
+     */
+    public static RequestBody ofWriter(BodyWriter writer) throws IOException {
+        ExposedByteArrayOutputStream out = new ExposedByteArrayOutputStream();
+        writer.writeTo(out);
+        return out.toBody();
+    }
+
+    /**
+     * A body read from a file
+     */
+    public static RequestBody ofFile(File file) {
+        return ofStream(() -> new FileInputStream(file), file.length());
+    }
+
+    /**
+     * A body streamed from a supplier, which is asked for a new stream every time the body is sent
+     *
+     * @param supplier
+     * @param contentLength the number of bytes the streams yield, or -1 if unknown
+     */
+    public static RequestBody ofStream(StreamSupplier supplier, long contentLength) {
+        return new RequestBody() {
+            @Override
+            public long contentLength() {
+                return contentLength;
+            }
+
+            @Override
+            public InputStream open() throws IOException {
+                return supplier.open();
+            }
+
+            @Override
+            public boolean isRepeatable() {
+                return true;
+            }
+        };
+    }
+
+    /**
+     * A body read once from an already opened stream. The request cannot be retried.
+     *
+     * @param in
+     * @param contentLength the number of bytes left in the stream, or -1 if unknown
+     */
+    public static RequestBody ofInputStream(InputStream in, long contentLength) {
+        return new RequestBody() {
+            private boolean opened;
+
+            @Override
+            public long contentLength() {
+                return contentLength;
+            }
+
+            @Override
+            public synchronized InputStream open() throws IOException {
+                if (opened) {
+                    throw new IOException("The body stream was already consumed");
+                }
+                opened = true;
+                return in;
+            }
+
+            @Override
+            public boolean isRepeatable() {
+                return false;
+            }
+        };
+    }
+
+    /**
+     * ByteArrayOutputStream whose content is sent as is, rather than copied by toByteArray()
+     */
+    private static class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+        ExposedByteArrayOutputStream() {
+            super(1024);
+        }
+
+        RequestBody toBody() {
+            return ofBytes(buf, 0, count);
+        }
+    }
+
+}
@@ -0,0 +1,373 @@
+import java.io.IOException;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Governs the requests of one or more clients: retries failed requests, and limits how many are in flight.
+ * <p>
+ * Throttled responses (429, 503) and transient failures (other 5xx, I/O errors) are retried with jittered
+ * exponential backoff, waiting at least as long as the server's <code>Retry-After</code> header asks.
+ * <p>
+ * The number of requests in flight is capped by an AIMD limit: each successful (2xx) response raises the limit by
+ * <code>1/limit</code> (about +1 per round trip), as long as at least half of it is in use, and a throttled response
+ * halves it, at most once every half second. This keeps the client running right at the rate the service accepts.
+ */
+public class RequestGovernor {
+
+    public static final int DEFAULT_MAX_ATTEMPTS = 6;
+    public static final int DEFAULT_INITIAL_LIMIT = 8;
+    public static final int DEFAULT_MAX_LIMIT = 256;
+    public static final Duration DEFAULT_BASE_BACKOFF = Duration.ofMillis(200);
+    public static final Duration DEFAULT_MAX_BACKOFF = Duration.ofSeconds(30);
+
+    private static final Duration DECREASE_COOLDOWN = Duration.ofMillis(500);
+
+    private static final Logger LOGGER =
+            Logger.getLogger(RequestGovernor.class.getName());
+
+    private final int maxAttempts;
+    private final int maxLimit;
+    private final long baseBackoffNanos;
+    private final long maxBackoffNanos;
+
+    // AIMD limiter state, guarded by this
+    private double limit;
+    private int inFlight;
+    private long lastDecrease;
+    private final ArrayDeque<CompletableFuture<Void>> waiters = new ArrayDeque<>();
+
+    // exponentially weighted average of the response time, to turn the concurrency limit into a rate
+    private volatile double averageNanos;
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder throttles = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    public RequestGovernor() {
+        this(DEFAULT_MAX_ATTEMPTS, DEFAULT_INITIAL_LIMIT, DEFAULT_MAX_LIMIT, DEFAULT_BASE_BACKOFF, DEFAULT_MAX_BACKOFF);
+    }
+
+    /**
+     * @param maxAttempts  how many times a request is sent before giving up, including the first time
+     * @param initialLimit number of requests allowed in flight at first
+     * @param maxLimit     the limit never grows past this number of requests in flight
+     * @param baseBackoff  upper bound of the delay before the first retry; doubles with each attempt
+     * @param maxBackoff   upper bound of the delay before any retry, unless the server asks for more
+     */
+    public RequestGovernor(int maxAttempts, int initialLimit, int maxLimit, Duration baseBackoff, Duration maxBackoff) {
+        if (maxAttempts < 1 || initialLimit < 1 || maxLimit < initialLimit) {
+            throw new IllegalArgumentException("Invalid governor settings");
+        }
+        this.maxAttempts = maxAttempts;
+        this.limit = initialLimit;
+        this.maxLimit = maxLimit;
+        this.baseBackoffNanos = baseBackoff.toNanos();
+        this.maxBackoffNanos = maxBackoff.toNanos();
+    }
+
+    /**
+     * Send a request through a transport, retrying it as needed.
+     *
+     * @return the final response, which may still be an error if it is not retryable or attempts ran out
+     * @throws IOException if the last attempt failed to get any response
+     */
+    public PushResponse send(PushTransport transport, PushRequest request) throws IOException, InterruptedException {
+        for (int attempt = 1; ; attempt++) {
+            acquire();
+            long start = System.nanoTime();
+            PushResponse response;
+            try {
+                try {
+                    response = transport.send(request);
+                } finally {
+                    // also on an interrupt or a runtime exception, or the permit would be lost for good
+                    release();
+                }
+            } catch (IOException e) {
+                if (!shouldRetry(request, attempt)) {
+                    failures.increment();
+                    throw e;
+                }
+                TimeUnit.NANOSECONDS.sleep(onRetry(request, attempt, null, e));
+                continue;
+            }
+
+            if (!onResponse(request, attempt, response, System.nanoTime() - start)) {
+                return response;
+            }
+            TimeUnit.NANOSECONDS.sleep(onRetry(request, attempt, response, null));
+        }
+    }
+
+    /**
+     * Asynchronous {@link #send(PushTransport, PushRequest)}. Neither waiting for a permit nor waiting before
+     * a retry holds a thread.
+     */
+    public CompletableFuture<PushResponse> sendAsync(PushTransport transport, PushRequest request) {
+        return sendAsync(transport, request, 1);
+    }
+
+    private CompletableFuture<PushResponse> sendAsync(PushTransport transport, PushRequest request, int attempt) {
+        return acquireAsync().thenCompose(permit -> {
+            long start = System.nanoTime();
+            CompletableFuture<PushResponse> sent;
+            try {
+                sent = transport.sendAsync(request);
+            } catch (RuntimeException e) {
+                // failed as a future, so that the handler below gives the permit back
+                sent = CompletableFuture.failedFuture(e);
+            }
+            return sent.handle((response, error) -> {
+                release();
+                Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                if (cause != null) {
+                    if (!(cause instanceof IOException) || !shouldRetry(request, attempt)) {
+                        failures.increment();
+                        return CompletableFuture.<PushResponse>failedFuture(cause);
+                    }
+                    return retryAsync(transport, request, attempt, onRetry(request, attempt, null, cause));
+                }
+                if (!onResponse(request, attempt, response, System.nanoTime() - start)) {
+                    return CompletableFuture.completedFuture(response);
+                }
+                return retryAsync(transport, request, attempt, onRetry(request, attempt, response, null));
+            }).thenCompose(future -> future);
+        });
+    }
+
+    private CompletableFuture<PushResponse> retryAsync(PushTransport transport, PushRequest request, int attempt, long delayNanos) {
+        return CompletableFuture.supplyAsync(() -> null, CompletableFuture.delayedExecutor(delayNanos, TimeUnit.NANOSECONDS))
+                .thenCompose(ignored -> sendAsync(transport, request, attempt + 1));
+    }
+
+    /**
+     * Update the limiter and counters with a response.
+     *
+     * @return true if the request should be retried
+     */
+    private boolean onResponse(PushRequest request, int attempt, PushResponse response, long elapsedNanos) {
+        requests.increment();
+        int code = response.getStatusCode();
+        if (isThrottled(code)) {
+            throttles.increment();
+            decreaseLimit();
+        } else if (code >= 200 && code < 300) {
+            recordLatency(elapsedNanos);
+            increaseLimit();
+        }
+        if (!isRetryable(code)) {
+            return false;
+        }
+        if (!shouldRetry(request, attempt)) {
+            failures.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Log and count a retry
+     *
+     * @return how long to wait before the retry, in nanoseconds
+     */
+    private long onRetry(PushRequest request, int attempt, PushResponse response, Throwable error) {
+        retries.increment();
+        long delay = backoffNanos(attempt, response);
+        LOGGER.warning("Retrying " + request + " in " + TimeUnit.NANOSECONDS.toMillis(delay) + " ms (attempt " + (attempt + 1)
+                + "/" + maxAttempts + ") after " + (response != null ? "response code " + response.getStatusCode() : error));
+        return delay;
+    }
+
+    private boolean shouldRetry(PushRequest request, int attempt) {
+        return attempt < maxAttempts && (request.getBody() == null || request.getBody().isRepeatable());
+    }
+
+    static boolean isThrottled(int code) {
+        return code == 429 || code == 503;
+    }
+
+    static boolean isRetryable(int code) {
+        return isThrottled(code) || code == 500 || code == 502 || code == 504;
+    }
+
+    /**
+     * Full-jitter exponential backoff, but never less than the server's Retry-After
+     */
+    private long backoffNanos(int attempt, PushResponse response) {
+        long ceiling = baseBackoffNanos << Math.min(attempt - 1, 30);
+        if (ceiling <= 0 || ceiling > maxBackoffNanos) {
+            ceiling = maxBackoffNanos;
+        }
+        long delay = ThreadLocalRandom.current().nextLong(ceiling + 1);
+        if (response != null) {
+            long retryAfter = retryAfterNanos(response.getHeader("Retry-After"));
+            delay = Math.max(delay, retryAfter);
+        }
+        return delay;
+    }
+
+    /**
+     * @param value a Retry-After header, either delta-seconds or an HTTP-date
+     * @return the delay it asks for, or 0 if absent or invalid
+     */
+    static long retryAfterNanos(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return 0;
+        }
+        value = value.trim();
+        try {
+            return TimeUnit.SECONDS.toNanos(Math.max(0, Long.parseLong(value)));
+        } catch (NumberFormatException e) {
+            try {
+                ZonedDateTime date = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME);
+                return Math.max(0, Duration.between(ZonedDateTime.now(date.getZone()), date).toNanos());
+            } catch (DateTimeParseException ignored) {
+                return 0;
+            }
+        }
+    }
+
+    private void acquire() throws InterruptedException {
+        CompletableFuture<Void> permit = acquireAsync();
+        try {
+            permit.get();
+        } catch (InterruptedException e) {
+            if (!permit.cancel(false)) {
+                // the permit was granted meanwhile, give it back
+                release();
+            }
+            throw e;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private synchronized CompletableFuture<Void> acquireAsync() {
+        if (waiters.isEmpty() && inFlight < (int) limit) {
+            inFlight++;
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<Void> waiter = new CompletableFuture<>();
+        waiters.add(waiter);
+        return waiter;
+    }
+
+    private void release() {
+        synchronized (this) {
+            inFlight--;
+        }
+        admitWaiters();
+    }
+
+    private void increaseLimit() {
+        synchronized (this) {
+            // only while the limit is used, counting the request just released: an idle client would otherwise grow
+            // it up to maxLimit, and its first burst would hit the service at full width
+            if ((inFlight + 1) * 2 < limit) {
+                return;
+            }
+            limit = Math.min(maxLimit, limit + 1.0 / limit);
+        }
+        admitWaiters();
+    }
+
+    /**
+     * Hand out the permits now available to waiting requests
+     */
+    private void admitWaiters() {
+        while (true) {
+            CompletableFuture<Void> next;
+            synchronized (this) {
+                if (waiters.isEmpty() || inFlight >= (int) limit) {
+                    return;
+                }
+                next = waiters.poll();
+                inFlight++;
+            }
+            // completed outside the lock, as it runs the waiter's continuation
+            if (!next.complete(null)) {
+                // the waiter gave up, take the permit back
+                synchronized (this) {
+                    inFlight--;
+                }
+            }
+        }
+    }
+
+    private synchronized void decreaseLimit() {
+        long now = System.nanoTime();
+        if (now - lastDecrease < DECREASE_COOLDOWN.toNanos()) {
+            return;
+        }
+        lastDecrease = now;
+        limit = Math.max(1, limit / 2);
+        LOGGER.warning("Throttled by the service, lowering the concurrency limit to " + (int) limit);
+    }
+
+    private void recordLatency(long nanos) {
+        double average = averageNanos;
+        averageNanos = average == 0 ? nanos : average * 0.9 + nanos * 0.1;
+    }
+
+    /**
+     * @return the number of requests currently allowed in flight
+     */
+    public synchronized int getConcurrencyLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * @return the number of requests currently in flight
+     */
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * @return the request rate the current limit permits, in requests per second, given the recent response time
+     */
+    public double getPermittedRate() {
+        double average = averageNanos;
+        return average == 0 ? 0 : getConcurrencyLimit() * 1e9 / average;
+    }
+
+    /**
+     * @return the number of responses received
+     */
+    public long getRequestCount() {
+        return requests.sum();
+    }
+
+    /**
+     * @return the number of requests that were sent again
+     */
+    public long getRetryCount() {
+        return retries.sum();
+    }
+
+    /**
+     * @return the number of throttled (429 / 503) responses
+     */
+    public long getThrottleCount() {
+        return throttles.sum();
+    }
+
+    /**
+     * @return the number of requests that failed for good after being retried, or that could not be retried
+     */
+    public long getFailureCount() {
+        return failures.sum();
+    }
+
+}
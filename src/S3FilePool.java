@@ -0,0 +1,242 @@
+import java.io.Closeable;
+import java.net.URI;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.time.Duration;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.TimeZone;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pool of pre-signed S3 upload URLs and their fileIds, fetched ahead of time so that uploads do not wait for the
+ * Files API.
+ * <p>
+ * When the pool falls below its low-water mark, it is refilled up to its capacity in the background. Entries are
+ * evicted before their URL expires, less a safety margin: the expiry is read from the <code>X-Amz-Date</code> and
+ * <code>X-Amz-Expires</code> parameters of the URL, or assumed to be <code>defaultLifetime</code> after the fetch.
+ * If the pool is empty, {@link #take()} fetches an entry itself.
+ */
+public class S3FilePool implements Closeable {
+
+    public static final int DEFAULT_CAPACITY = 16;
+    public static final int DEFAULT_LOW_WATER_MARK = 4;
+    /** Pre-signed URLs of the Files API are valid for an hour */
+    public static final Duration DEFAULT_LIFETIME = Duration.ofHours(1);
+    public static final Duration DEFAULT_EXPIRY_MARGIN = Duration.ofMinutes(5);
+
+    private static final Logger LOGGER =
+            Logger.getLogger(S3FilePool.class.getName());
+
+    private static class PooledFile {
+        final AbstractMap.SimpleEntry<String, String> s3File;
+        final long evictAt;
+
+        PooledFile(AbstractMap.SimpleEntry<String, String> s3File, long evictAt) {
+            this.s3File = s3File;
+            this.evictAt = evictAt;
+        }
+    }
+
+    private final CoveoPushAPI coveoPushAPI;
+    private final int capacity;
+    private final int lowWaterMark;
+    private final long defaultLifetimeMillis;
+    private final long expiryMarginMillis;
+
+    private final ArrayDeque<PooledFile> pool = new ArrayDeque<>();
+    private int fetching;
+    private boolean closed;
+    private final ScheduledExecutorService sweeper;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+    private final AtomicLong fetchFailures = new AtomicLong();
+
+    public S3FilePool(CoveoPushAPI coveoPushAPI) {
+        this(coveoPushAPI, DEFAULT_CAPACITY, DEFAULT_LOW_WATER_MARK, DEFAULT_LIFETIME, DEFAULT_EXPIRY_MARGIN);
+    }
+
+    /**
+     * Create a pool, and start filling it
+     *
+     * @param coveoPushAPI    client the entries are fetched with
+     * @param capacity        number of entries the pool is refilled to
+     * @param lowWaterMark    the pool is refilled when it holds fewer entries than this
+     * @param defaultLifetime validity of URLs that do not carry their expiry
+     * @param expiryMargin    entries are evicted this long before their URL expires
+     */
+    public S3FilePool(CoveoPushAPI coveoPushAPI, int capacity, int lowWaterMark, Duration defaultLifetime, Duration expiryMargin) {
+        if (capacity <= 0 || lowWaterMark < 0 || lowWaterMark > capacity) {
+            throw new IllegalArgumentException("Invalid capacity / low-water mark: " + capacity + " / " + lowWaterMark);
+        }
+        if (expiryMargin.compareTo(defaultLifetime) >= 0) {
+            throw new IllegalArgumentException("The expiry margin must be shorter than the lifetime: " + expiryMargin);
+        }
+        this.coveoPushAPI = coveoPushAPI;
+        this.capacity = capacity;
+        this.lowWaterMark = lowWaterMark;
+        this.defaultLifetimeMillis = defaultLifetime.toMillis();
+        this.expiryMarginMillis = expiryMargin.toMillis();
+
+        sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "coveo-s3-file-pool");
+            t.setDaemon(true);
+            return t;
+        });
+        // evict expiring entries even while no upload takes any, so the pool is fresh when uploads resume
+        long period = Math.max(1000, expiryMarginMillis / 2);
+        sweeper.scheduleWithFixedDelay(this::sweep, period, period, TimeUnit.MILLISECONDS);
+        refill();
+    }
+
+    /**
+     * @return an unused upload URL and its fileId, as {@link CoveoPushAPI#getS3File()} does
+     */
+    public AbstractMap.SimpleEntry<String, String> take() throws Exception {
+        PooledFile pooled;
+        synchronized (this) {
+            evictExpired();
+            pooled = pool.poll();
+        }
+        refill();
+        if (pooled != null) {
+            hits.incrementAndGet();
+            return pooled.s3File;
+        }
+        misses.incrementAndGet();
+        return coveoPushAPI.getS3File();
+    }
+
+    /**
+     * @return the number of entries ready to be taken
+     */
+    public synchronized int size() {
+        return pool.size();
+    }
+
+    /** @return the number of takes served from the pool */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /** @return the number of takes that had to fetch an entry, the pool being empty */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /** @return the number of entries evicted unused, as their URL was about to expire */
+    public long getExpirations() {
+        return expirations.get();
+    }
+
+    /** @return the number of background fetches that failed */
+    public long getFetchFailures() {
+        return fetchFailures.get();
+    }
+
+    /**
+     * Stop refilling, and drop the pooled entries
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            pool.clear();
+        }
+        sweeper.shutdownNow();
+        LOGGER.info("S3 file pool closed: hits=" + hits + ", misses=" + misses + ", expirations=" + expirations
+                + ", fetch failures=" + fetchFailures);
+    }
+
+    private void sweep() {
+        synchronized (this) {
+            evictExpired();
+        }
+        refill();
+    }
+
+    /**
+     * Drop the entries due for eviction
+     */
+    private void evictExpired() {
+        long now = System.currentTimeMillis();
+        Iterator<PooledFile> it = pool.iterator();
+        while (it.hasNext()) {
+            if (it.next().evictAt <= now) {
+                it.remove();
+                expirations.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * If the pool is below its low-water mark, fetch entries up to its capacity
+     */
+    private void refill() {
+        int missing;
+        synchronized (this) {
+            if (closed || (pool.size() + fetching >= lowWaterMark && pool.size() + fetching > 0)) {
+                return;
+            }
+            missing = capacity - pool.size() - fetching;
+            fetching += missing;
+        }
+        for (int i = 0; i < missing; i++) {
+            coveoPushAPI.getS3FileAsync().whenComplete((s3File, failure) -> {
+                synchronized (this) {
+                    fetching--;
+                    if (failure == null && !closed) {
+                        pool.add(new PooledFile(s3File, evictAt(s3File.getKey(), System.currentTimeMillis())));
+                    }
+                }
+                if (failure != null) {
+                    // the next take or sweep tries again
+                    fetchFailures.incrementAndGet();
+                    LOGGER.log(Level.WARNING, "Unable to prefetch an S3 file", failure);
+                }
+            });
+        }
+    }
+
+    /**
+     * @return when an entry fetched at <code>fetchedAt</code> should be evicted
+     */
+    private long evictAt(String uploadUri, long fetchedAt) {
+        long expiresAt = fetchedAt + defaultLifetimeMillis;
+        String date = queryParameter(uploadUri, "X-Amz-Date");
+        String expires = queryParameter(uploadUri, "X-Amz-Expires");
+        if (date != null && expires != null) {
+            try {
+                SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd'T'HHmmss'Z'");
+                format.setTimeZone(TimeZone.getTimeZone("UTC"));
+                expiresAt = format.parse(date).getTime() + Long.parseLong(expires) * 1000;
+            } catch (ParseException | NumberFormatException e) {
+                LOGGER.warning("Unable to read the expiry of " + uploadUri + ", assuming " + defaultLifetimeMillis + " ms");
+            }
+        }
+        return expiresAt - expiryMarginMillis;
+    }
+
+    private static String queryParameter(String uri, String name) {
+        String query = URI.create(uri).getRawQuery();
+        if (query == null) {
+            return null;
+        }
+        for (String parameter : query.split("&")) {
+            int eq = parameter.indexOf('=');
+            if (eq > 0 && parameter.substring(0, eq).equalsIgnoreCase(name)) {
+                return parameter.substring(eq + 1);
+            }
+        }
+        return null;
+    }
+
+}
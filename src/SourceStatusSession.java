@@ -0,0 +1,161 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Shares the status of a source between the jobs of a client, so that concurrent jobs do not flip each other's
+ * status, and a job does not cost two status calls.
+ * <p>
+ * The first job to {@link #begin(String)} sets the source status (REBUILD, REFRESH or INCREMENTAL); jobs that begin
+ * while it is set join it, whatever status they asked for. The source goes back to IDLE when the last job is closed.
+ * While jobs are open, a shutdown hook restores IDLE if the JVM exits, including on SIGINT or SIGTERM; nothing can
+ * be done if the process is killed outright.
+ *
+ * <pre>
+ * try (SourceStatusSession.Job job = coveoPushAPI.getStatusSession().begin("REBUILD")) {
+ *     coveoPushAPI.putDocumentOnCoveo(json, docId);
+ * }
+ * </pre>
+ */
+public class SourceStatusSession {
+
+    public static final String IDLE = "IDLE";
+
+    private static final Logger LOGGER =
+            Logger.getLogger(SourceStatusSession.class.getName());
+
+    /**
+     * A job holding the source status; closing it releases it. Closing twice has no effect.
+     */
+    public class Job implements Closeable {
+        private boolean closed;
+
+        private Job() {
+        }
+
+        /**
+         * @return the status of the source while this job is open, which may be another job's
+         */
+        public String getStatus() {
+            return SourceStatusSession.this.getStatus();
+        }
+
+        @Override
+        public void close() throws IOException {
+            lock.lock();
+            try {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                try {
+                    end();
+                } catch (IOException | RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new IOException("Unable to set the source status back to " + IDLE, e);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private final CoveoPushAPI coveoPushAPI;
+    private final Thread shutdownHook = new Thread(this::restoreOnShutdown, "coveo-source-status");
+
+    // guards the state below; a lock rather than a monitor, as it is held across the status calls and a virtual
+    // thread blocked on a monitor pins its carrier thread on Java 21 to 23
+    private final ReentrantLock lock = new ReentrantLock();
+    private int jobs;
+    private String status = IDLE;
+
+    SourceStatusSession(CoveoPushAPI coveoPushAPI) {
+        this.coveoPushAPI = coveoPushAPI;
+    }
+
+    /**
+     * Begin a job, setting the source status if no other job is open
+     *
+     * @param statusType REBUILD, REFRESH or INCREMENTAL
+     */
+    public Job begin(String statusType) throws Exception {
+        lock.lock();
+        try {
+            if (jobs == 0) {
+                coveoPushAPI.setSourceStatus(statusType);
+                try {
+                    Runtime.getRuntime().addShutdownHook(shutdownHook);
+                } catch (IllegalStateException e) {
+                    // already shutting down: no job may begin
+                    coveoPushAPI.setSourceStatus(IDLE);
+                    throw e;
+                }
+                status = statusType;
+            } else if (!status.equals(statusType)) {
+                LOGGER.info("Source status is already " + status + ", " + statusType + " job joins it");
+            }
+            jobs++;
+            return new Job();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of open jobs
+     */
+    public int getJobCount() {
+        lock.lock();
+        try {
+            return jobs;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the status set by the open jobs, or IDLE
+     */
+    public String getStatus() {
+        lock.lock();
+        try {
+            return status;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void end() throws Exception {
+        if (--jobs > 0) {
+            return;
+        }
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException ignored) {
+            // already shutting down: the hook finds no open job, the status is restored below
+        }
+        status = IDLE;
+        coveoPushAPI.setSourceStatus(IDLE);
+    }
+
+    private void restoreOnShutdown() {
+        lock.lock();
+        try {
+            if (jobs == 0) {
+                return;
+            }
+            LOGGER.warning("Exiting with " + jobs + " open jobs, setting the source status back to IDLE");
+            try {
+                coveoPushAPI.setSourceStatus(IDLE);
+            } catch (Exception e) {
+                LOGGER.log(Level.SEVERE, "Unable to restore the source status", e);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+}
@@ -0,0 +1,93 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Bulk copy helpers shared by all upload paths.
+ * <p>
+ * Copies go through one large buffer borrowed from the {@link BufferPool} instead of a byte at a time, and
+ * file-to-file copies are handed to {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}
+ * so the kernel moves the bytes without them ever reaching the heap.
+ */
+public final class StreamTransfer {
+
+    /** Size of the copy buffer */
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    private StreamTransfer() {
+    }
+
+    /**
+     * Copy an inputstream to an outputstream, until the end of the inputstream.
+     * Neither stream is closed.
+     *
+     * @param is
+     * @param os
+     * @return the number of bytes copied
+     * @throws IOException
+     */
+    public static long copy(InputStream is, OutputStream os) throws IOException {
+        if (is instanceof FileInputStream) {
+            return copy(((FileInputStream) is).getChannel(), os);
+        }
+        BufferPool pool = BufferPool.getDefault();
+        byte[] buffer = pool.acquireBuffer();
+        try {
+            long total = 0;
+            int length;
+            while ((length = is.read(buffer)) >= 0) {
+                os.write(buffer, 0, length);
+                total += length;
+            }
+            return total;
+        } finally {
+            pool.releaseBuffer(buffer);
+        }
+    }
+
+    /**
+     * Copy a file channel, from its current position to its end, to an outputstream.
+     * The channel position is advanced past the copied bytes. Neither side is closed.
+     *
+     * @param channel
+     * @param os
+     * @return the number of bytes copied
+     * @throws IOException
+     */
+    public static long copy(FileChannel channel, OutputStream os) throws IOException {
+        long position = channel.position();
+        long remaining = channel.size() - position;
+
+        if (os instanceof FileOutputStream) {
+            // zero-copy: the kernel moves the bytes from file to file
+            FileChannel target = ((FileOutputStream) os).getChannel();
+            long total = 0;
+            while (total < remaining) {
+                long n = channel.transferTo(position + total, remaining - total, target);
+                if (n <= 0) {
+                    break;
+                }
+                total += n;
+            }
+            channel.position(position + total);
+            return total;
+        }
+
+        BufferPool pool = BufferPool.getDefault();
+        byte[] buffer = pool.acquireBuffer();
+        try {
+            ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+            long total = 0;
+            int length;
+            while ((length = channel.read(wrapped)) >= 0) {
+                os.write(buffer, 0, length);
+                wrapped.clear();
+                total += length;
+            }
+            return total;
+        } finally {
+            pool.releaseBuffer(buffer);
+        }
+    }
+
+}
@@ -0,0 +1,543 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Persistent docId -> (size, mtime, content hash, last pushed orderingId) map used by {@link IncrementalSync}.
+ * <p>
+ * Entries live in a memory-mapped open-addressing hash table of fixed 64-byte records, so millions of entries can
+ * be looked up without loading them on the heap; the OS pages the table in and out as needed. DocIds are
+ * appended to a side file (<code>&lt;manifest&gt;.names</code>), and a record only holds a 64-bit hash of its
+ * docId and the offset of the docId in that file. The docIds of removed entries stay in the side file: when a run
+ * begins and they make up most of it, the table and the side file are rewritten with the live entries only, the
+ * side file under a new name (<code>&lt;manifest&gt;.names.&lt;generation&gt;</code>) so that the table switches
+ * to it atomically.
+ * <p>
+ * Each sync run has an epoch number. Entries seen during a run are stamped with its epoch, and entries left with
+ * an older epoch at the end of the run belong to files that disappeared.
+ * <p>
+ * All methods are synchronized; callers should do expensive work such as hashing outside of them.
+ */
+public class SyncManifest implements Closeable {
+
+    /** A manifest entry, as read at some point */
+    public static class Entry {
+        public final String docId;
+        public final long size;
+        public final long lastModified;
+        public final byte[] contentHash;
+        public final long orderingId;
+
+        Entry(String docId, long size, long lastModified, byte[] contentHash, long orderingId) {
+            this.docId = docId;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.contentHash = contentHash;
+            this.orderingId = orderingId;
+        }
+    }
+
+    /** Receives the docIds of entries not seen during a run */
+    public interface UnseenHandler {
+        void unseen(String docId) throws Exception;
+    }
+
+    public static final int HASH_LENGTH = 16;
+
+    private static final int MAGIC = 0x434d4e46; // "CMNF"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int RECORD_SIZE = 64;
+    // records are mapped in regions of 2^20 records (64 MB), as a single mapping cannot exceed 2 GB
+    private static final int REGION_SHIFT = 20;
+    private static final int REGION_RECORDS = 1 << REGION_SHIFT;
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final double MAX_LOAD = 0.7;
+    // the side file is compacted when a run begins, if it is this large and more than this share of it is dead
+    private static final long COMPACT_MIN_NAMES_BYTES = 1024 * 1024;
+    private static final double COMPACT_DEAD_SHARE = 0.5;
+
+    private static final Logger LOGGER =
+            Logger.getLogger(SyncManifest.class.getName());
+
+    // header fields
+    private static final int H_MAGIC = 0;
+    private static final int H_VERSION = 4;
+    private static final int H_CAPACITY = 8;
+    private static final int H_USED = 12;
+    private static final int H_LIVE = 16;
+    private static final int H_EPOCH = 20;
+    // zero in manifests written before the side file was compacted, which is right for the generation, and makes
+    // the first run compact it, which counts the live bytes
+    private static final int H_NAMES_GENERATION = 24;
+    private static final int H_LIVE_NAME_BYTES = 32;
+
+    // record fields
+    private static final int R_KEY = 0;
+    private static final int R_NAME = 8;
+    private static final int R_SIZE = 16;
+    private static final int R_MTIME = 24;
+    private static final int R_ORDERING = 32;
+    private static final int R_HASH = 40;
+    private static final int R_EPOCH = 56;
+    private static final int R_FLAGS = 60;
+
+    private static final int FLAG_DELETED = 1;
+
+    private final File file;
+
+    private RandomAccessFile tableRaf;
+    private MappedByteBuffer header;
+    private MappedByteBuffer[] regions;
+    private int capacity;
+    private int used;
+    private int live;
+    private int epoch;
+    private int namesGeneration;
+    // bytes of the side file holding the docIds of live entries
+    private long liveNameBytes;
+
+    private File namesFile;
+    private RandomAccessFile namesRaf;
+    private FileChannel names;
+
+    /**
+     * Open a manifest, creating it if it does not exist
+     *
+     * @param file the table file; docIds are kept next to it in <code>file.names</code>
+     */
+    public SyncManifest(File file) throws IOException {
+        this.file = file;
+
+        boolean exists = file.exists() && file.length() >= HEADER_SIZE;
+        if (exists) {
+            map(file);
+            if (header.getInt(H_MAGIC) != MAGIC || header.getInt(H_VERSION) != VERSION) {
+                tableRaf.close();
+                throw new IOException("Not a sync manifest: " + file);
+            }
+            capacity = header.getInt(H_CAPACITY);
+            used = header.getInt(H_USED);
+            live = header.getInt(H_LIVE);
+            epoch = header.getInt(H_EPOCH);
+            namesGeneration = header.getInt(H_NAMES_GENERATION);
+            liveNameBytes = header.getLong(H_LIVE_NAME_BYTES);
+        } else {
+            create(file, INITIAL_CAPACITY);
+            map(file);
+            capacity = INITIAL_CAPACITY;
+            writeHeader();
+        }
+        namesFile = namesFile(namesGeneration);
+        namesRaf = new RandomAccessFile(namesFile, "rw");
+        names = namesRaf.getChannel();
+        deleteStaleNames();
+    }
+
+    /**
+     * Start a new run, first compacting the side file if most of it holds the docIds of removed entries
+     *
+     * @return the epoch of the run
+     */
+    public synchronized int beginRun() throws IOException {
+        long namesBytes = names.size();
+        if (namesBytes >= COMPACT_MIN_NAMES_BYTES && namesBytes - liveNameBytes > namesBytes * COMPACT_DEAD_SHARE) {
+            rebuild(capacity, true);
+            LOGGER.info("Compacted the docIds of " + file + " from " + namesBytes + " to " + names.size() + " bytes");
+        }
+        epoch++;
+        writeHeader();
+        return epoch;
+    }
+
+    /**
+     * @return the entry of a docId, or <code>null</code> if it is not in the manifest
+     */
+    public synchronized Entry get(String docId) throws IOException {
+        int slot = find(docId);
+        if (slot < 0 || isDeleted(slot)) {
+            return null;
+        }
+        ByteBuffer region = region(slot);
+        int base = offset(slot);
+        byte[] hash = new byte[HASH_LENGTH];
+        for (int i = 0; i < HASH_LENGTH; i++) {
+            hash[i] = region.get(base + R_HASH + i);
+        }
+        return new Entry(docId, region.getLong(base + R_SIZE), region.getLong(base + R_MTIME), hash, region.getLong(base + R_ORDERING));
+    }
+
+    /**
+     * Mark an unchanged entry as seen in the current run, updating its size and mtime
+     *
+     * @return false if the docId is not in the manifest
+     */
+    public synchronized boolean touch(String docId, long size, long lastModified) throws IOException {
+        int slot = find(docId);
+        if (slot < 0 || isDeleted(slot)) {
+            return false;
+        }
+        ByteBuffer region = region(slot);
+        int base = offset(slot);
+        region.putLong(base + R_SIZE, size);
+        region.putLong(base + R_MTIME, lastModified);
+        region.putInt(base + R_EPOCH, epoch);
+        return true;
+    }
+
+    /**
+     * Mark an entry as seen in the current run without changing it, e.g. when its file could not be pushed
+     *
+     * @return false if the docId is not in the manifest
+     */
+    public synchronized boolean markSeen(String docId) throws IOException {
+        int slot = find(docId);
+        if (slot < 0 || isDeleted(slot)) {
+            return false;
+        }
+        region(slot).putInt(offset(slot) + R_EPOCH, epoch);
+        return true;
+    }
+
+    /**
+     * Add or replace the entry of a docId, and mark it as seen in the current run
+     */
+    public synchronized void put(String docId, long size, long lastModified, byte[] contentHash, long orderingId) throws IOException {
+        if (contentHash.length != HASH_LENGTH) {
+            throw new IllegalArgumentException("Content hash must be " + HASH_LENGTH + " bytes");
+        }
+        int slot = find(docId);
+        if (slot < 0) {
+            if (used + 1 > capacity * MAX_LOAD) {
+                grow();
+            }
+            byte[] name = docId.getBytes(StandardCharsets.UTF_8);
+            slot = insert(keyHash(docId), appendName(names, name));
+            used++;
+            live++;
+            liveNameBytes += 4 + name.length;
+        } else if (isDeleted(slot)) {
+            live++;
+            liveNameBytes += nameBytes(slot);
+        }
+        ByteBuffer region = region(slot);
+        int base = offset(slot);
+        region.putLong(base + R_SIZE, size);
+        region.putLong(base + R_MTIME, lastModified);
+        region.putLong(base + R_ORDERING, orderingId);
+        for (int i = 0; i < HASH_LENGTH; i++) {
+            region.put(base + R_HASH + i, contentHash[i]);
+        }
+        region.putInt(base + R_EPOCH, epoch);
+        region.putInt(base + R_FLAGS, 0);
+        writeHeader();
+    }
+
+    /**
+     * Hand the docId of every entry not seen during the current run to <code>handler</code>
+     *
+     * @return the number of entries not seen
+     */
+    public synchronized long forEachUnseen(UnseenHandler handler) throws Exception {
+        long unseen = 0;
+        for (int slot = 0; slot < capacity; slot++) {
+            if (isUnseen(slot)) {
+                handler.unseen(readName(region(slot).getLong(offset(slot) + R_NAME)));
+                unseen++;
+            }
+        }
+        return unseen;
+    }
+
+    /**
+     * Remove every entry not seen during the current run
+     *
+     * @return the number of entries removed
+     */
+    public synchronized long removeUnseen() throws IOException {
+        long removed = 0;
+        for (int slot = 0; slot < capacity; slot++) {
+            if (isUnseen(slot)) {
+                region(slot).putInt(offset(slot) + R_FLAGS, FLAG_DELETED);
+                live--;
+                liveNameBytes -= nameBytes(slot);
+                removed++;
+            }
+        }
+        writeHeader();
+        return removed;
+    }
+
+    private boolean isUnseen(int slot) {
+        ByteBuffer region = region(slot);
+        int base = offset(slot);
+        return region.getLong(base + R_KEY) != 0 && !isDeleted(slot) && region.getInt(base + R_EPOCH) != epoch;
+    }
+
+    /**
+     * @return the number of entries in the manifest
+     */
+    public synchronized int size() {
+        return live;
+    }
+
+    /**
+     * Write the mapped pages back to disk
+     */
+    public synchronized void force() throws IOException {
+        header.force();
+        for (MappedByteBuffer region : regions) {
+            region.force();
+        }
+        names.force(false);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (header != null) {
+            force();
+            header = null;
+            regions = null;
+            tableRaf.close();
+        }
+        namesRaf.close();
+    }
+
+    /**
+     * @return the slot holding a docId, deleted or not, or -1
+     */
+    private int find(String docId) throws IOException {
+        long key = keyHash(docId);
+        int mask = capacity - 1;
+        for (int slot = (int) (key ^ (key >>> 32)) & mask; ; slot = (slot + 1) & mask) {
+            ByteBuffer region = region(slot);
+            int base = offset(slot);
+            long k = region.getLong(base + R_KEY);
+            if (k == 0) {
+                return -1;
+            }
+            if (k == key && docId.equals(readName(region.getLong(base + R_NAME)))) {
+                return slot;
+            }
+        }
+    }
+
+    /**
+     * Claim the first empty slot for a key
+     */
+    private int insert(long key, long nameOffset) {
+        int mask = capacity - 1;
+        for (int slot = (int) (key ^ (key >>> 32)) & mask; ; slot = (slot + 1) & mask) {
+            ByteBuffer region = region(slot);
+            int base = offset(slot);
+            if (region.getLong(base + R_KEY) == 0) {
+                region.putLong(base + R_KEY, key);
+                region.putLong(base + R_NAME, nameOffset);
+                return slot;
+            }
+        }
+    }
+
+    private boolean isDeleted(int slot) {
+        return (region(slot).getInt(offset(slot) + R_FLAGS) & FLAG_DELETED) != 0;
+    }
+
+    /**
+     * Double the table, dropping deleted entries, and swap it in
+     */
+    private void grow() throws IOException {
+        rebuild(capacity * 2, false);
+    }
+
+    /**
+     * Copy the live entries into a new table, and swap it in. With <code>compactNames</code>, their docIds are also
+     * copied into the side file of the next generation, which the new table refers to: swapping the table in
+     * switches both at once, and the old side file is deleted after.
+     */
+    private void rebuild(int newCapacity, boolean compactNames) throws IOException {
+        File next = new File(file.getPath() + ".next");
+        create(next, newCapacity);
+
+        MappedByteBuffer[] oldRegions = regions;
+        int oldCapacity = capacity;
+        RandomAccessFile oldRaf = tableRaf;
+        File newNamesFile = compactNames ? namesFile(namesGeneration + 1) : namesFile;
+        RandomAccessFile newNamesRaf = compactNames ? new RandomAccessFile(newNamesFile, "rw") : namesRaf;
+        FileChannel newNames = newNamesRaf.getChannel();
+        if (compactNames) {
+            newNamesRaf.setLength(0);
+            namesGeneration++;
+            liveNameBytes = 0;
+        }
+
+        map(next);
+        capacity = newCapacity;
+        used = 0;
+        live = 0;
+        byte[] record = new byte[RECORD_SIZE];
+        for (int slot = 0; slot < oldCapacity; slot++) {
+            ByteBuffer region = oldRegions[slot >>> REGION_SHIFT];
+            int base = (slot & (REGION_RECORDS - 1)) * RECORD_SIZE;
+            long key = region.getLong(base + R_KEY);
+            if (key == 0 || (region.getInt(base + R_FLAGS) & FLAG_DELETED) != 0) {
+                continue;
+            }
+            long nameOffset = region.getLong(base + R_NAME);
+            if (compactNames) {
+                byte[] name = readNameBytes(nameOffset);
+                nameOffset = appendName(newNames, name);
+                liveNameBytes += 4 + name.length;
+            }
+            int target = insert(key, nameOffset);
+            ByteBuffer from = region.duplicate();
+            from.position(base);
+            from.get(record);
+            ByteBuffer to = region(target).duplicate();
+            to.position(offset(target));
+            to.put(record);
+            region(target).putLong(offset(target) + R_NAME, nameOffset);
+            used++;
+            live++;
+        }
+        writeHeader();
+        newNames.force(false);
+        force();
+        oldRaf.close();
+
+        // the mappings of the old file stay valid until collected, but are no longer used
+        tableRaf.close();
+        Files.move(next.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        map(file);
+
+        if (compactNames) {
+            namesRaf.close();
+            namesFile.delete();
+            namesFile = newNamesFile;
+            namesRaf = newNamesRaf;
+            names = newNames;
+        }
+    }
+
+    private static void create(File target, int capacity) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(target, "rw")) {
+            raf.setLength(0);
+            raf.setLength(HEADER_SIZE + (long) capacity * RECORD_SIZE);
+            raf.seek(H_MAGIC);
+            raf.writeInt(MAGIC);
+            raf.writeInt(VERSION);
+            raf.writeInt(capacity);
+        }
+    }
+
+    private void map(File target) throws IOException {
+        tableRaf = new RandomAccessFile(target, "rw");
+        FileChannel channel = tableRaf.getChannel();
+        header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        int slots = (int) ((channel.size() - HEADER_SIZE) / RECORD_SIZE);
+        List<MappedByteBuffer> mapped = new ArrayList<>();
+        for (long first = 0; first < slots; first += REGION_RECORDS) {
+            long count = Math.min(REGION_RECORDS, slots - first);
+            mapped.add(channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE + first * RECORD_SIZE, count * RECORD_SIZE));
+        }
+        regions = mapped.toArray(new MappedByteBuffer[0]);
+    }
+
+    private void writeHeader() {
+        header.putInt(H_CAPACITY, capacity);
+        header.putInt(H_USED, used);
+        header.putInt(H_LIVE, live);
+        header.putInt(H_EPOCH, epoch);
+        header.putInt(H_NAMES_GENERATION, namesGeneration);
+        header.putLong(H_LIVE_NAME_BYTES, liveNameBytes);
+    }
+
+    private ByteBuffer region(int slot) {
+        return regions[slot >>> REGION_SHIFT];
+    }
+
+    private static int offset(int slot) {
+        return (slot & (REGION_RECORDS - 1)) * RECORD_SIZE;
+    }
+
+    private File namesFile(int generation) {
+        return new File(file.getPath() + ".names" + (generation == 0 ? "" : "." + generation));
+    }
+
+    /**
+     * Delete the side files of other generations, left by a crash while compacting
+     */
+    private void deleteStaleNames() {
+        String prefix = file.getName() + ".names";
+        File[] stale = file.getAbsoluteFile().getParentFile().listFiles((dir, name) -> name.startsWith(prefix)
+                && !name.equals(namesFile.getName()) && name.substring(prefix.length()).matches("(\\.\\d+)?"));
+        if (stale != null) {
+            for (File names : stale) {
+                names.delete();
+            }
+        }
+    }
+
+    private static long appendName(FileChannel names, byte[] name) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4 + name.length);
+        buffer.putInt(name.length).put(name).flip();
+        long offset = names.size();
+        while (buffer.hasRemaining()) {
+            names.write(buffer, offset + buffer.position());
+        }
+        return offset;
+    }
+
+    private String readName(long offset) throws IOException {
+        return new String(readNameBytes(offset), StandardCharsets.UTF_8);
+    }
+
+    private byte[] readNameBytes(long offset) throws IOException {
+        ByteBuffer length = ByteBuffer.allocate(4);
+        readFully(length, offset);
+        ByteBuffer bytes = ByteBuffer.allocate(length.getInt(0));
+        readFully(bytes, offset + 4);
+        return bytes.array();
+    }
+
+    /**
+     * @return the bytes the docId of a slot takes in the side file
+     */
+    private long nameBytes(int slot) throws IOException {
+        ByteBuffer length = ByteBuffer.allocate(4);
+        readFully(length, region(slot).getLong(offset(slot) + R_NAME));
+        return 4 + length.getInt(0);
+    }
+
+    private void readFully(ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (names.read(buffer, offset + buffer.position()) < 0) {
+                throw new EOFException("Truncated names file: " + namesFile);
+            }
+        }
+    }
+
+    /**
+     * 64-bit FNV-1a hash of a docId, finished with the murmur3 mixer; never 0, which marks empty slots
+     */
+    static long keyHash(String docId) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < docId.length(); i++) {
+            h ^= docId.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h == 0 ? 1 : h;
+    }
+
+}
@@ -0,0 +1,111 @@
+import org.apache.commons.cli.*;
+
+import java.io.File;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+public class SyncTest {
+
+    private static final Logger LOGGER =
+            Logger.getLogger(SyncTest.class.getName());
+
+    /**
+     * Usage: SyncTest -o coveochadjohnson01 -s coveochadjohnson01-x4vdgehj6st4bvt6ur3wmx2poi
+     *              -a __________-____-____-____-____________ -f "/Users/cjohnson/somefolder"
+     *              -u http://www.test.com/somefolder/ -m "/Users/cjohnson/somefolder.manifest" [-t 8]
+     *
+     * Pushes the new and changed files of a folder tree, and deletes the documents of the files that disappeared
+     * since the previous run with the same manifest.
+     *
+     * @param args
+     */
+    public static void main(String[] args) {
+
+        String organizationId = null;
+        String sourceId = null;
+        String accessToken = null;
+        String folderPath = null;
+        String baseUri = null;
+        String manifestPath = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+
+        // create the command line parser
+        CommandLineParser parser = new DefaultParser();
+
+        // create the Options
+        Options options = new Options();
+        options.addOption(Option.builder("o")
+                .longOpt("organization-id")
+                .desc("Coveo Organization ID")
+                .hasArg().required().build());
+        options.addOption(Option.builder("s")
+                .longOpt("source-id")
+                .desc("Coveo Source ID")
+                .hasArg().required().build());
+        options.addOption(Option.builder("a")
+                .longOpt("access-token")
+                .desc("Coveo Source Access Token")
+                .hasArg().required().build());
+        options.addOption(Option.builder("f")
+                .longOpt("folder")
+                .desc("Path to the folder tree to sync")
+                .hasArg().required().build());
+        options.addOption(Option.builder("u")
+                .longOpt("base-uri")
+                .desc("Prefix of the Coveo Document IDs (URI); the relative path of each file is appended to it")
+                .hasArg().required().build());
+        options.addOption(Option.builder("m")
+                .longOpt("manifest")
+                .desc("Path to the sync manifest, created on the first run")
+                .hasArg().required().build());
+        options.addOption(Option.builder("t")
+                .longOpt("threads")
+                .desc("Number of files hashed and pushed at once")
+                .hasArg().build());
+
+        try {
+            // parse the command line arguments
+            CommandLine line = parser.parse(options, args);
+
+            organizationId = line.getOptionValue("o");
+            sourceId = line.getOptionValue("s");
+            accessToken = line.getOptionValue("a");
+            folderPath = line.getOptionValue("f");
+            baseUri = line.getOptionValue("u");
+            manifestPath = line.getOptionValue("m");
+            if (line.hasOption("t")) {
+                threads = Integer.parseInt(line.getOptionValue("t"));
+            }
+
+        } catch (ParseException | NumberFormatException exp) {
+            HelpFormatter formatter = new HelpFormatter();
+            formatter.printHelp("SyncTest <args>", options);
+            System.exit(0);
+        }
+
+        // Construct CoveoPushAPI object
+        CoveoPushAPI coveoPushAPI = new CoveoPushAPI(organizationId, sourceId, accessToken);
+
+        // Fetch the S3 upload URLs of the changed files ahead of time
+        // *** Set Source Status to INCREMENTAL for the time of the job, then back to IDLE ***
+        try (SyncManifest manifest = new SyncManifest(new File(manifestPath));
+             S3FilePool s3FilePool = new S3FilePool(coveoPushAPI);
+             SourceStatusSession.Job job = coveoPushAPI.getStatusSession().begin("INCREMENTAL")) {
+            coveoPushAPI.setS3FilePool(s3FilePool);
+            // Per-stage latency and throughput, under CoveoPushAPI:type=PushMetrics in JMX consoles
+            coveoPushAPI.registerMetricsMBeans();
+            LOGGER.info("Source status: " + job.getStatus());
+
+            // *** Push the changes since the previous run
+            IncrementalSync sync = new IncrementalSync(coveoPushAPI, manifest, threads);
+            IncrementalSync.Result result = sync.run(new File(folderPath), baseUri);
+            LOGGER.info("Sync result: " + result);
+            LOGGER.info("Push metrics:" + System.lineSeparator() + coveoPushAPI.getMetrics());
+
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "Failed to sync folder", e);
+        }
+
+    }
+
+}
@@ -1,16 +1,6 @@
 import org.apache.commons.cli.*;
-import org.apache.commons.io.FilenameUtils;
-import org.apache.commons.lang.StringUtils;
-import org.json.JSONWriter;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.InputStream;
-import java.io.StringWriter;
-import java.text.SimpleDateFormat;
-import java.util.AbstractMap;
-import java.util.Date;
-import java.util.TimeZone;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -22,7 +12,10 @@ public class UploadLargeFileTest {
     /**
      * Usage: UploadLargeFileTest -o coveochadjohnson01 -s coveochadjohnson01-x4vdgehj6st4bvt6ur3wmx2poi
      *              -a __________-____-____-____-____________ -f "/Users/cjohnson/somefile.pdf"
-     *              -d http://www.test.com/somefile.pdf
+     *              -d http://www.test.com/somefile.pdf [-c /tmp/coveo-artifacts]
+     *
+     * The compressed file is kept in the artifact cache until the document is committed: running the same command
+     * again after a failure uploads it again without compressing it again.
      *
      * @param args
      */
@@ -33,6 +26,7 @@ public class UploadLargeFileTest {
         String accessToken = null;
         String filePath = null;
         String docId = null;
+        String cachePath = null;
 
         // create the command line parser
         CommandLineParser parser = new DefaultParser();
@@ -59,6 +53,10 @@ public class UploadLargeFileTest {
                 .longOpt("doc-id")
                 .desc("Coveo Document ID (URI)")
                 .hasArg().required().build());
+        options.addOption(Option.builder("c")
+                .longOpt("cache")
+                .desc("Folder keeping the compressed file until the document is committed (default: coveo-artifacts in the temp folder)")
+                .hasArg().build());
 
         try {
             // parse the command line arguments
@@ -69,6 +67,7 @@ public class UploadLargeFileTest {
             accessToken = line.getOptionValue("a");
             filePath = line.getOptionValue("f");
             docId = line.getOptionValue("d");
+            cachePath = line.getOptionValue("c");
 
         } catch (ParseException exp) {
             HelpFormatter formatter = new HelpFormatter();
@@ -79,68 +78,37 @@ public class UploadLargeFileTest {
         // Construct CoveoPushAPI object
         CoveoPushAPI coveoPushAPI = new CoveoPushAPI(organizationId, sourceId, accessToken);
 
-        try {
-            // *** Set Source Status to REBUILD ***
-            coveoPushAPI.setSourceStatus("REBUILD");
-
-            // *** Get Pre-Signed AWS S3 URL for uploading file ***
-            AbstractMap.SimpleEntry<String, String> s3File = coveoPushAPI.getS3File();
-            String uploadUri = s3File.getKey();
-            String fileId = s3File.getValue();
+        // *** Set Source Status to REBUILD for the time of the job, then back to IDLE ***
+        try (SourceStatusSession.Job job = coveoPushAPI.getStatusSession().begin("REBUILD")) {
+            LOGGER.info("Source status: " + job.getStatus());
 
-            // *** ZLIB compress file ***
-            // Open InputStream to binary file
-            InputStream is = new FileInputStream(filePath);
+            File file = new File(filePath);
             // Preserve original (pre-compressed) byte size, which we will need later
-            int originalFileSize = is.available();
-            // Create a temp file to hold the compressed file
-            File temp = File.createTempFile("temp", ".zlib");
-            // wrap input stream with new zlib inputstream
-            InputStream zis = coveoPushAPI.zlibInputStream(is, temp);
-
-            // *** PUT the ZLIB file to S3 ***
-            coveoPushAPI.putFileOnS3(zis, uploadUri);
-            // delete the temp zlib file, which has now been uploaded to S3
-            temp.delete();
-
-            // *** Create JSON Document for Coveo
-            StringWriter jsonDocument = new StringWriter();
-            JSONWriter jw = new JSONWriter(jsonDocument);
-            jw.object();
-
-            jw.key("CompressedBinaryDataFileId");
-            jw.value(fileId);
-
-            jw.key("size");
-            jw.value(originalFileSize);
-
-            jw.key("date");
-            Date date = new Date(new File(filePath).lastModified());
-            SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-            sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
-            jw.value(sdf.format(date));
-
-            jw.key("FileExtension");
-            String extension = FilenameUtils.getExtension(filePath);
-            // add period to extension; use .txt if no extension was found
-            if(StringUtils.isBlank(extension)) {
-                extension = ".txt";
+            long originalFileSize = file.length();
+            // The compression is chosen from the file's extension and first bytes; files that are compressed
+            // already (JPEG, ZIP, DOCX...) are sent as is
+            CompressionSelector.Choice choice = new CompressionSelector().choose(file);
+
+            // Small files are embedded in the JSON Document, in a single request; large ones go through S3
+            if (originalFileSize < FileDocumentPusher.DEFAULT_INLINE_THRESHOLD) {
+                // *** PUT the JSON Document on Coveo; compressionType and CompressedBinaryData are written after the
+                // other fields, as the file is compressed
+                coveoPushAPI.putDocumentWithDataOnCoveo(document -> FileDocumentPusher.encode(document, file, null, null),
+                        docId, -1, file, choice);
             } else {
-                extension = "." + extension;
-            }
-            jw.value(extension);
+                // *** Compress the file into the artifact cache, unless an earlier run left it there ***
+                ArtifactCache cache = cachePath != null ? new ArtifactCache(new File(cachePath)) : new ArtifactCache();
+                ArtifactCache.Artifact artifact = cache.obtain(file, choice, target -> coveoPushAPI.compressFile(file, target, choice));
 
-            jw.endObject();
-
-            String json = jsonDocument.toString();
-            LOGGER.info("JSON Document = " + json);
-
-            // *** PUT the JSON Document on Coveo
-            coveoPushAPI.putDocumentOnCoveo(json, docId);
-
-            // *** Set source status back to IDLE
-            coveoPushAPI.setSourceStatus("IDLE");
+                // *** PUT it to S3, with its MD5, on a new Pre-Signed AWS S3 URL for each attempt ***
+                String fileId = coveoPushAPI.putArtifactOnS3(artifact);
 
+                // *** PUT the JSON Document on Coveo, encoded straight into the request (logged at FINE level)
+                coveoPushAPI.putDocumentOnCoveo(document -> FileDocumentPusher.encode(document, file, fileId, choice.type), docId, -1);
+                // the document is committed, the compressed file is no longer needed
+                cache.evict(artifact);
+            }
+            LOGGER.info("Compression: " + coveoPushAPI.getCompressionStats());
 
         } catch (Exception e) {
             LOGGER.log(Level.SEVERE, "Failed to push file", e);